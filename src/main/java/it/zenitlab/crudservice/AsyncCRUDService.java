@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Esecuzione asincrona delle operazioni di un CRUDService. Ogni operazione
+ * viene eseguita su un'istanza del servizio creata per l'occasione, con un
+ * proprio EntityManager, e chiusa al termine: è quindi possibile eseguire in
+ * parallelo, ad esempio, count e list dello stesso filtro o più letture per
+ * id.
+ * <p>
+ * Il numero di operazioni in corso è limitato da maxConcurrent: oltre il
+ * limite, la sottomissione attende che un'operazione termini (al più
+ * acquireTimeout millisecondi, se impostato). L'executor è configurabile; su
+ * JVM che li supportano si può passare un executor di thread virtuali.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class AsyncCRUDService<S extends CRUDService> {
+
+    private static ExecutorService defaultExecutor;
+
+    /**
+     * Crea l'istanza del servizio per un'operazione, che deve usare
+     * l'EntityManager ricevuto (es., con il costruttore
+     * CRUDService(EntityManager, Class)): alla chiusura del servizio
+     * l'EntityManager viene chiuso.
+     */
+    public interface ServiceFactory<S extends CRUDService> {
+
+        S create(EntityManager em);
+    }
+
+    /**
+     * Operazione da eseguire sul servizio.
+     */
+    public interface Operation<S extends CRUDService, V> {
+
+        V execute(S service) throws ServiceException;
+    }
+
+    final EntityManagerFactory emf;
+    final ServiceFactory<S> factory;
+    final ExecutorService executor;
+    final Semaphore permits;
+    long acquireTimeout;
+
+    /**
+     * Usa la persistence unit predefinita di EM, l'executor condiviso e al
+     * più 16 operazioni concorrenti.
+     *
+     * @param factory
+     */
+    public AsyncCRUDService(ServiceFactory<S> factory) {
+        this(EM.getFactory(), factory, null, 16);
+    }
+
+    /**
+     * @param emf la factory da cui creare l'EntityManager di ogni operazione
+     * @param factory
+     * @param executor l'executor delle operazioni, oppure null per un pool
+     * condiviso di thread daemon
+     * @param maxConcurrent il numero massimo di operazioni in corso
+     */
+    public AsyncCRUDService(EntityManagerFactory emf, ServiceFactory<S> factory, ExecutorService executor, int maxConcurrent) {
+        this.emf = emf;
+        this.factory = factory;
+        this.executor = executor != null ? executor : defaultExecutor();
+        this.permits = new Semaphore(maxConcurrent);
+    }
+
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * @param acquireTimeout per quanti millisecondi attendere che si liberi un
+     * posto quando il limite di operazioni concorrenti è raggiunto (0 per
+     * attendere senza limite)
+     */
+    public void setAcquireTimeout(long acquireTimeout) {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    public <T> Future<T> read(final int id) throws ServiceException {
+        return submit(new Operation<S, T>() {
+            @Override
+            public T execute(S service) throws ServiceException {
+                return (T) service.read(id);
+            }
+        });
+    }
+
+    public Future<List> list(final Collection<FilterCondition> filter, final List<SortingVerse> order, final Integer start, final Integer limit) throws ServiceException {
+        return submit(new Operation<S, List>() {
+            @Override
+            public List execute(S service) throws ServiceException {
+                return service.list(filter, order, start, limit);
+            }
+        });
+    }
+
+    public Future<Long> count(final Collection<FilterCondition> filter) throws ServiceException {
+        return submit(new Operation<S, Long>() {
+            @Override
+            public Long execute(S service) throws ServiceException {
+                return service.count(filter);
+            }
+        });
+    }
+
+    public <T> Future<T> create(final T o, final HashMap<String, Object> params) throws ServiceException {
+        return submit(new Operation<S, T>() {
+            @Override
+            public T execute(S service) throws ServiceException {
+                return (T) service.create(o, params);
+            }
+        });
+    }
+
+    public <T> Future<T> update(final T o, final HashMap<String, Object> params) throws ServiceException {
+        return submit(new Operation<S, T>() {
+            @Override
+            public T execute(S service) throws ServiceException {
+                return (T) service.update(o, params);
+            }
+        });
+    }
+
+    public Future<Object> delete(final int id, final HashMap<String, Object> params) throws ServiceException {
+        return submit(new Operation<S, Object>() {
+            @Override
+            public Object execute(S service) throws ServiceException {
+                return service.delete(id, params);
+            }
+        });
+    }
+
+    /**
+     * Sottomette un'operazione qualsiasi sul servizio. Se il limite di
+     * operazioni concorrenti è raggiunto, attende che se ne liberi un posto.
+     * Il posto viene liberato al termine dell'operazione, con successo o con
+     * errore, oppure alla cancellazione del Future se l'operazione non è
+     * ancora iniziata. Un'operazione già iniziata mantiene il posto fino alla
+     * sua effettiva conclusione, anche se il Future viene cancellato con
+     * cancel(true), dato che continua a occupare un thread e una connessione.
+     *
+     * @param operation
+     * @return il risultato dell'operazione; get() lancia ExecutionException
+     * con causa l'eventuale ServiceException
+     * @throws ServiceException se il posto non si libera entro
+     * acquireTimeout, o se l'attesa viene interrotta
+     */
+    public <V> Future<V> submit(final Operation<S, V> operation) throws ServiceException {
+        try {
+            if (acquireTimeout <= 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new ServiceException("Too many concurrent operations", "Servizio occupato");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while waiting for a free slot", "Operazione interrotta");
+        }
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                EntityManager em = null;
+                S service = null;
+                try {
+                    em = emf.createEntityManager();
+                    service = factory.create(em);
+                    return operation.execute(service);
+                } finally {
+                    try {
+                        if (service != null) {
+                            service.close();
+                        } else if (em != null) {
+                            EM.close(em);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                // cancellata prima dell'inizio: call() non rilascerà il posto
+                if (started.compareAndSet(false, true)) {
+                    permits.release();
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.cancel(false);
+            throw new ServiceException(e.getMessage(), "Servizio occupato");
+        }
+        return task;
+    }
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "crud-service-async");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+}
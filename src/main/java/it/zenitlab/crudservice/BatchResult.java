@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.ServiceException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Esito di un'operazione su un insieme di oggetti: gli oggetti elaborati
+ * correttamente e, per posizione nella collezione di partenza, gli errori
+ * degli oggetti scartati.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class BatchResult<T> {
+
+    List<T> processed = new ArrayList<T>();
+    LinkedHashMap<Integer, ServiceException> failures = new LinkedHashMap<Integer, ServiceException>();
+
+    public List<T> getProcessed() {
+        return processed;
+    }
+
+    public Map<Integer, ServiceException> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+}
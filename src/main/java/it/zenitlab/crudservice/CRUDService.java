@@ -16,33 +16,55 @@
 
 package it.zenitlab.crudservice;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import it.zenitlab.crudservice.cache.EntityCache;
+import it.zenitlab.crudservice.cache.LruCache;
+import it.zenitlab.crudservice.cache.QueryCache;
+import it.zenitlab.crudservice.cache.RowCounter;
+import it.zenitlab.crudservice.exception.DependingObjectsException;
 import it.zenitlab.crudservice.exception.InvalidClassException;
 import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.exception.MissingParameterException;
 import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.crudservice.metrics.Metrics;
+import it.zenitlab.crudservice.query.ChunkIterator;
+import it.zenitlab.crudservice.query.FetchPlan;
+import it.zenitlab.crudservice.query.KeysetPage;
+import it.zenitlab.crudservice.query.KeysetToken;
+import it.zenitlab.crudservice.query.Page;
+import it.zenitlab.crudservice.query.PageOptions;
+import it.zenitlab.crudservice.query.ParallelScan;
+import it.zenitlab.crudservice.query.QueryPlan;
+import it.zenitlab.crudservice.query.QueryPlanCompiler;
+import it.zenitlab.crudservice.query.SlowQueryLog;
+import it.zenitlab.crudservice.query.TotalCache;
 import it.zenitlab.util.criteria.FilterCondition;
 import it.zenitlab.util.criteria.SortingVerse;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Query;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Expression;
-import javax.persistence.criteria.Join;
-import javax.persistence.criteria.JoinType;
-import javax.persistence.criteria.Order;
-import javax.persistence.criteria.Path;
-import javax.persistence.criteria.Predicate;
-import javax.persistence.criteria.Root;
 import org.apache.log4j.Logger;
 
 /**
@@ -54,11 +76,39 @@ import org.apache.log4j.Logger;
 public abstract class CRUDService implements AutoCloseable {
 
     final static public int CREATE = 1, UPDATE = 2, ASC = 1, DESC = -1;
+    /**
+     * Parametri del binder predefinito: collezioni dei nomi degli attributi da
+     * copiare o da non copiare.
+     */
+    final static public String BIND_INCLUDE = "bind.include", BIND_EXCLUDE = "bind.exclude";
     protected EntityManager em;
     protected Class entityClass;
+    protected int batchSize = 50;
+    protected int inChunkSize = 500;
+    private EntityManagerProvider provider;
+    private EntityManager readEm;
+    private int operations;
+    private long primaryUntil;
+    protected long readYourWritesWindow = 1000;
+    private static final ConcurrentHashMap<Class, Boolean> mergeHooks = new ConcurrentHashMap<Class, Boolean>();
+    private static final ConcurrentHashMap<Class, Method> idGetters = new ConcurrentHashMap<Class, Method>();
+    private static final Set<Class> uncacheable = Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
 
     public CRUDService(Class entityClass) {
-        em = EM.getInstance();
+        this((String) null, entityClass);
+    }
+
+    /**
+     * Crea il servizio con un EntityManager della persistence unit indicata,
+     * ottenuto dal provider di EM e restituito al provider da close().
+     *
+     * @param persistenceUnit il nome della persistence unit, oppure null per
+     * quella predefinita
+     * @param entityClass
+     */
+    public CRUDService(String persistenceUnit, Class entityClass) {
+        provider = EM.getProvider();
+        em = provider.getEntityManager(persistenceUnit);
         this.entityClass = entityClass;
     }
 
@@ -88,29 +138,51 @@ public abstract class CRUDService implements AutoCloseable {
      * @return l'oggetto reso persistente
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public <T> T create(T o, HashMap<String, Object> params) throws ServiceException {
+    public <T> T create(final T o, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.CREATE, new Timed<T>() {
+            @Override
+            public T run() throws ServiceException {
+                return doCreate(o, params);
+            }
+        });
+    }
+
+    private <T> T doCreate(T o, HashMap<String, Object> params) throws ServiceException {
         if (!o.getClass().equals(entityClass)) {
             throw new InvalidClassException(entityClass, o.getClass(), "Classe non valida. Ricevuto oggetto " + o.getClass() + " invece di " + entityClass);
         }
+        long t = Metrics.start();
         validate(o, CREATE, params);
+        Metrics.phase(entityClass, Metrics.VALIDATE, t);
         boolean activeTransaction = !beginTransaction();
         try {
+            t = Metrics.start();
             beforePersist(o, params);
+            Metrics.phase(entityClass, Metrics.BEFORE, t);
             em.persist(o);
+            t = Metrics.start();
             afterPersist(o, params);
+            Metrics.phase(entityClass, Metrics.AFTER, t);
+            rowsChanged(1);
         } catch (ServiceException ipe) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             throw ipe;
         } catch (Exception e) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             Logger.getLogger(CRUDService.class).error("Unexpected error in CREATE", e);
             throw new ServiceException(e.getMessage(), "Unexpected error");
         }
         commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+        if (!activeTransaction) {
+            cacheEntity(o);
+        }
         return o;
     }
 
@@ -127,16 +199,147 @@ public abstract class CRUDService implements AutoCloseable {
     }
 
     /**
-     * Legge l'oggetto con id uguale a quello passato
+     * Crea tutti gli oggetti della collezione in un'unica transazione. Per
+     * ogni oggetto vengono invocati validate, beforePersist e afterPersist come
+     * in create(). Ogni batchSize oggetti le modifiche vengono scritte sul DB,
+     * in modo da sfruttare il batching JDBC. Se la transazione è stata aperta
+     * da questo metodo, il contesto di persistenza viene anche svuotato, per
+     * mantenere costante la memoria occupata: gli oggetti restituiti e quelli
+     * correlati caricati in precedenza risultano quindi non più gestiti. Se
+     * invece il metodo partecipa a una transazione già attiva, il contesto non
+     * viene svuotato, perché contiene gli oggetti gestiti dal chiamante, che
+     * devono restare tali fino alla sua conclusione. Gli oggetti che non
+     * superano validate o beforePersist
+     * vengono scartati e il relativo errore è riportato nel risultato, senza
+     * interrompere il salvataggio degli altri; un errore successivo alla
+     * persist di un oggetto, invece, annulla l'intera operazione.
+     *
+     * @param <T>
+     * @param objects gli oggetti da rendere persistenti
+     * @param params un insieme di parametri (opzionali) da usare durante il
+     * salvataggio
+     * @param batchSize il numero di oggetti dopo il quale effettuare flush
+     * (e clear, se la transazione è stata aperta da questo metodo)
+     * @return gli oggetti resi persistenti e gli errori di quelli scartati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> BatchResult<T> createAll(final Collection<T> objects, final HashMap<String, Object> params, final int batchSize) throws ServiceException {
+        return timed(Metrics.CREATE_ALL, new Timed<BatchResult<T>>() {
+            @Override
+            public BatchResult<T> run() throws ServiceException {
+                return doCreateAll(objects, params, batchSize);
+            }
+        });
+    }
+
+    private <T> BatchResult<T> doCreateAll(Collection<T> objects, HashMap<String, Object> params, int batchSize) throws ServiceException {
+        BatchResult<T> res = new BatchResult<T>();
+        boolean activeTransaction = !beginTransaction();
+        try {
+            int i = 0, pending = 0;
+            for (T o : objects) {
+                try {
+                    if (!o.getClass().equals(entityClass)) {
+                        throw new InvalidClassException(entityClass, o.getClass(), "Classe non valida. Ricevuto oggetto " + o.getClass() + " invece di " + entityClass);
+                    }
+                    validate(o, CREATE, params);
+                    beforePersist(o, params);
+                } catch (ServiceException e) {
+                    res.failures.put(i++, e);
+                    continue;
+                }
+                em.persist(o);
+                afterPersist(o, params);
+                res.processed.add(o);
+                i++;
+                if (++pending >= batchSize) {
+                    em.flush();
+                    if (!activeTransaction) {
+                        em.clear();
+                    }
+                    pending = 0;
+                }
+            }
+            rowsChanged(res.processed.size());
+        } catch (ServiceException ipe) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            throw ipe;
+        } catch (Exception e) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            Logger.getLogger(CRUDService.class).error("Unexpected error in CREATE", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        }
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+        return res;
+    }
+
+    public <T> BatchResult<T> createAll(Collection<T> objects, HashMap<String, Object> params) throws ServiceException {
+        return createAll(objects, params, batchSize);
+    }
+
+    public <T> BatchResult<T> createAll(Collection<T> objects) throws ServiceException {
+        return createAll(objects, new HashMap<String, Object>(), batchSize);
+    }
+
+    /**
+     * Legge l'oggetto con id uguale a quello passato. Se per la classe è
+     * abilitata la cache degli oggetti (EntityCache), al di fuori di una
+     * transazione viene sempre restituita una copia non gestita, sia che
+     * l'oggetto fosse in cache sia che sia stato letto dal DB: le modifiche
+     * vanno salvate con update().
      *
      * @param <T>
-     * @param id L'id dell'oggetto da leggere
+     * @param id L'id dell'oggetto da leggere, convertito nel tipo dell'id
+     * dell'entità (es., Long o UUID)
      * @param params un insieme di parametri (opzionali) da usare durante la
      * lettura
-     * @return L'oggetto letto, se esiste, oppure null
+     * @return L'oggetto letto, se esiste, oppure null. Se la lettura avviene
+     * su una replica (vedi readEntityManager()), l'oggetto è restituito non
+     * gestito.
      */
+    public <T> T read(final Object id, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.READ, new Timed<T>() {
+            @Override
+            public T run() throws ServiceException {
+                return doRead(id, params);
+            }
+        });
+    }
+
     public <T> T read(int id, HashMap<String, Object> params) throws ServiceException {
-        return (T) em.find(entityClass, id);
+        return read((Object) id, params);
+    }
+
+    private <T> T doRead(Object id, HashMap<String, Object> params) throws ServiceException {
+        if (id == null) {
+            throw new InvalidParameterException("id", null, "ID NULL");
+        }
+        EntityMetadata.Property idProperty = EntityMetadata.of(em.getMetamodel(), entityClass).getIdProperty();
+        if (idProperty != null) {
+            id = idProperty.convert(id);
+        }
+        LruCache<Object, Object> cache = entityCache();
+        if (cache == null || em.getTransaction().isActive()) {
+            return (T) readEntityManager().find(entityClass, id);
+        }
+        Object o = cached(cache, id);
+        if (o == null) {
+            EntityManager rem = readEntityManager();
+            o = rem.find(entityClass, id);
+            if (o != null) {
+                EntitySnapshot snapshot = EntitySnapshot.take(rem, entityClass, o);
+                cache.put(id, snapshot);
+                o = snapshot.restore(em);
+            }
+        }
+        return (T) o;
     }
 
     /**
@@ -150,8 +353,124 @@ public abstract class CRUDService implements AutoCloseable {
         return read(id, new HashMap<String, Object>());
     }
 
+    public <T> T read(Object id) throws ServiceException {
+        return read(id, new HashMap<String, Object>());
+    }
+
+    /**
+     * Legge l'oggetto con id uguale a quello passato, caricando con la stessa
+     * query le entità correlate indicate dai percorsi di fetch.
+     *
+     * @param <T>
+     * @param id
+     * @param params
+     * @param fetch i percorsi, eventualmente puntati, delle associazioni da
+     * caricare (es., "cliente", "voci.prodotto")
+     * @return L'oggetto letto, se esiste, oppure null
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> T read(final int id, final HashMap<String, Object> params, final List<String> fetch) throws ServiceException {
+        if (fetch == null || fetch.isEmpty()) {
+            return read(id, params);
+        }
+        return timed(Metrics.READ, new Timed<T>() {
+            @Override
+            public T run() throws ServiceException {
+                return doRead(id, params, fetch);
+            }
+        });
+    }
+
+    private <T> T doRead(int id, HashMap<String, Object> params, List<String> fetch) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, null, null);
+        FetchPlan fp = QueryPlanCompiler.compileFetch(em, entityClass, plan, fetch);
+        if (fp.getFetchByIdsJpql() == null) {
+            return doRead(id, params);
+        }
+        try {
+            Query q = readEntityManager().createQuery(fp.getFetchByIdsJpql());
+            q.setParameter("ids", Collections.singletonList(id));
+            List res = q.getResultList();
+            return res.isEmpty() ? null : (T) res.get(0);
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in READ", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        }
+    }
+
     /**
-     * Elenco di tutti gli oggetti del tipo di riferimento.
+     * Legge gli oggetti con gli id indicati con query IN su blocchi di
+     * inChunkSize id, senza letture per singolo id. Gli oggetti già caricati
+     * nel contesto di persistenza sono restituiti come istanze gestite, senza
+     * interrogare il DB; gli altri sono letti da readEntityManager() e, se la
+     * lettura avviene su una replica, sono staccati. Il risultato consente di
+     * risolvere riferimenti multipli con un numero limitato di query.
+     *
+     * @param <T>
+     * @param ids
+     * @return gli oggetti letti per id, nell'ordine degli id passati; gli id
+     * inesistenti sono assenti
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> Map<Integer, T> readAll(final Collection<Integer> ids) throws ServiceException {
+        return timed(Metrics.READ_ALL, new Timed<Map<Integer, T>>() {
+            @Override
+            public Map<Integer, T> run() throws ServiceException {
+                return doReadAll(ids);
+            }
+        });
+    }
+
+    private <T> Map<Integer, T> doReadAll(Collection<Integer> ids) throws ServiceException {
+        LinkedHashMap<Integer, T> res = new LinkedHashMap<Integer, T>();
+        if (ids == null || ids.isEmpty()) {
+            return res;
+        }
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, null, null);
+        if (plan.getIdAttribute() == null) {
+            throw new ServiceException("readAll requires a single id attribute in " + entityClass.getName(), "Lettura non supportata");
+        }
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        try {
+            for (Integer id : ids) {
+                if (id != null && !res.containsKey(id)) {
+                    Object o = em.getReference(entityClass, id);
+                    if (util.isLoaded(o)) {
+                        res.put(id, (T) o);
+                    } else {
+                        res.put(id, null);
+                        missing.add(id);
+                    }
+                }
+            }
+            String jpql = "SELECT o FROM " + plan.getEntityName() + " o WHERE o." + plan.getIdAttribute() + " IN :ids";
+            EntityManager rem = readEntityManager();
+            for (int i = 0; i < missing.size(); i += inChunkSize) {
+                Query q = rem.createQuery(jpql);
+                q.setParameter("ids", missing.subList(i, Math.min(i + inChunkSize, missing.size())));
+                for (Object o : q.getResultList()) {
+                    res.put((Integer) getId(o), (T) o);
+                }
+            }
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in READ", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        }
+        Iterator<T> it = res.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == null) {
+                it.remove();
+            }
+        }
+        Metrics.rows(entityClass, Metrics.READ_ALL, res.size());
+        return res;
+    }
+
+    /**
+     * Elenco di tutti gli oggetti del tipo di riferimento. Se la lettura
+     * avviene su una replica (vedi readEntityManager()), gli oggetti sono
+     * restituiti non gestiti.
      *
      * @param filter
      * @param order
@@ -160,309 +479,373 @@ public abstract class CRUDService implements AutoCloseable {
      * @return
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public List list(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit) throws ServiceException {
-        CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
-        CriteriaQuery<Object> criteriaQuery = criteriaBuilder.createQuery();
-        Root from = criteriaQuery.from(entityClass);
-        criteriaQuery.select(from);
-        if (filter != null && !filter.isEmpty()) {
-            HashMap<String, Path> filterPaths = new HashMap<String, Path>();
-            for (FilterCondition f : filter) {
-                String attribute = f.getAttribute();
-                String[] ss = attribute.split("\\.");
-                if (ss.length == 1) {
-                    filterPaths.put(attribute, from.get(attribute));
-                } else {
-                    Join j = from.join(ss[0], JoinType.LEFT);
-                    for (int i = 1; i < ss.length - 1; i++) {
-                        j = j.join(ss[i], JoinType.LEFT);
-                    }
-                    filterPaths.put(attribute, j.get(ss[ss.length - 1]));
-                }
+    public List list(final Collection<FilterCondition> filter, final List<SortingVerse> order, final Integer start, final Integer limit) throws ServiceException {
+        return timed(Metrics.LIST, new Timed<List>() {
+            @Override
+            public List run() throws ServiceException {
+                return doList(filter, order, start, limit);
             }
-            Predicate p = criteriaBuilder.conjunction();
-            Gson gson = new GsonBuilder().setDateFormat("dd/MM/yyyy HH:mm").create();
-            for (FilterCondition f : filter) {
-                if (f.getOperandClassName() != null && !f.getOperandClassName().equals(f.getOperand().getClass().getName())) {
-                    Class c1 = null;
-                    try {
-                        c1 = Class.forName(f.getOperandClassName());
-                    } catch (ClassNotFoundException ex) {
-                        Logger.getLogger(CRUDService.class).error("Class c1 not found in list", ex);
-                    }
-                    f.setOperand(gson.fromJson("\"" + f.getOperand().toString() + "\"", c1));
-                }
-                if (f.getOperand2() != null && f.getOperand2ClassName() != null && !f.getOperand2ClassName().equals(f.getOperand2().getClass().getName())) {
-                    Class c2 = null;
-                    try {
-                        c2 = Class.forName(f.getOperand2ClassName());
-                    } catch (ClassNotFoundException ex) {
-                        Logger.getLogger(CRUDService.class).error("Class c2 not found in list", ex);
-                    }
-                    f.setOperand2(gson.fromJson("\"" + f.getOperand2().toString() + "\"", c2));
+        });
+    }
+
+    private List doList(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        Object[] operands = plan.operands(filter);
+        LruCache<String, Object> cache = queryCache(plan, true);
+        String key = null;
+        long generation = 0;
+        if (cache != null) {
+            key = "L|" + QueryPlanCompiler.canonicalKey(entityClass, filter, order, operands) + "|" + start + "|" + limit;
+            generation = QueryCache.generation(entityClass);
+            List<Object> ids = (List<Object>) cache.get(key);
+            if (ids != null) {
+                List res = rehydrate(ids);
+                if (res != null) {
+                    Metrics.rows(entityClass, Metrics.LIST, res.size());
+                    return res;
                 }
-                switch (f.getOperator()) {
-                    case FilterCondition.EQ:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.equal(filterPaths.get(f.getAttribute()), f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.equal(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.GE:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThanOrEqualTo(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThanOrEqualTo(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.GT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThan(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThan(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThan(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThan(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LE:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThanOrEqualTo(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThanOrEqualTo(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.NEQ:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.notEqual(filterPaths.get(f.getAttribute()), f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.notEqual(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LK:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.like(filterPaths.get(f.getAttribute()), (String) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.like(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.NL:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isNull(filterPaths.get(f.getAttribute())));
-                        break;
-                    case FilterCondition.NNL:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isNotNull(filterPaths.get(f.getAttribute())));
-                        break;
-                    case FilterCondition.BT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.between(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand(), (Comparable) f.getOperand2()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            Expression<String> literal2 = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand2()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.between(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal, literal2));
-                        }
-                        break;
-                    case FilterCondition.NEMPTY:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isNotEmpty(filterPaths.get(f.getAttribute())));
-                        break;
-                    case FilterCondition.EMPTY:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isEmpty(filterPaths.get(f.getAttribute())));
-                        break;
+            }
+        }
+        try {
+            long slow = SlowQueryLog.start();
+            Query q = readEntityManager().createQuery(plan.getSelectJpql());
+            plan.bind(q, operands);
+            if (limit != null) {
+                q.setMaxResults(limit);
+            }
+            if (start != null) {
+                q.setFirstResult(start);
+            }
+            List res = q.getResultList();
+            SlowQueryLog.record(entityClass, "list", filter, order, start, limit, res.size(), plan.getSelectJpql(), slow);
+            if (key != null) {
+                PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+                ArrayList<Object> ids = new ArrayList<Object>(res.size());
+                for (Object o : res) {
+                    ids.add(util.getIdentifier(o));
                 }
+                QueryCache.put(entityClass, generation, key, ids);
             }
-            criteriaQuery.where(p);
+            Metrics.rows(entityClass, Metrics.LIST, res.size());
+            return res;
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in LIST", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
         }
-        if (order != null && !order.isEmpty()) {
-            HashMap<String, Path> orderPaths = new HashMap<String, Path>();
-            for (SortingVerse s : order) {
-                String attribute = s.getAttribute();
-                String[] ss = attribute.split("\\.");
-                if (ss.length == 1) {
-                    orderPaths.put(attribute, from.get(attribute));
-                } else {
-                    Join j = from.join(ss[0]);
-                    for (int i = 1; i < ss.length - 1; i++) {
-                        j = j.join(ss[i]);
+    }
+
+    /**
+     * Come list(), ma carica con gli oggetti anche le entità correlate
+     * indicate dai percorsi di fetch, attraverso LEFT JOIN FETCH, evitando le
+     * letture una riga alla volta delle associazioni lazy. Gli oggetti
+     * duplicati dai fetch su collezioni vengono eliminati. Se un percorso
+     * attraversa una collezione e sono indicati start o limit, vengono prima
+     * letti gli id della pagina e poi gli oggetti con i fetch, in modo che la
+     * paginazione sia applicata dal DB sugli oggetti e non sulle righe del
+     * join.
+     *
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param fetch i percorsi, eventualmente puntati, delle associazioni da
+     * caricare (es., "cliente", "voci.prodotto")
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public List list(final Collection<FilterCondition> filter, final List<SortingVerse> order, final Integer start, final Integer limit, final List<String> fetch) throws ServiceException {
+        if (fetch == null || fetch.isEmpty()) {
+            return list(filter, order, start, limit);
+        }
+        return timed(Metrics.LIST, new Timed<List>() {
+            @Override
+            public List run() throws ServiceException {
+                return doList(filter, order, start, limit, fetch);
+            }
+        });
+    }
+
+    private List doList(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit, List<String> fetch) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        FetchPlan fp = QueryPlanCompiler.compileFetch(em, entityClass, plan, fetch);
+        EntityManager rem = readEntityManager();
+        try {
+            long slow = SlowQueryLog.start();
+            if (fp.isCollectionFetch() && (start != null || limit != null) && fp.getIdsJpql() != null) {
+                Query q = rem.createQuery(fp.getIdsJpql());
+                plan.bind(q, filter);
+                if (limit != null) {
+                    q.setMaxResults(limit);
+                }
+                if (start != null) {
+                    q.setFirstResult(start);
+                }
+                ArrayList<Object> ids = new ArrayList<Object>(new LinkedHashSet<Object>(q.getResultList()));
+                PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+                HashMap<Object, Object> loaded = new HashMap<Object, Object>();
+                for (int i = 0; i < ids.size(); i += inChunkSize) {
+                    Query fq = rem.createQuery(fp.getFetchByIdsJpql());
+                    fq.setParameter("ids", ids.subList(i, Math.min(i + inChunkSize, ids.size())));
+                    for (Object o : fq.getResultList()) {
+                        loaded.put(util.getIdentifier(o), o);
                     }
-                    orderPaths.put(attribute, j.get(ss[ss.length - 1]));
                 }
-            }
-            ArrayList<Order> ord = new ArrayList<Order>();
-            for (SortingVerse s : order) {
-                if (s.getVersus() == SortingVerse.ASC) {
-                    if (s.getIsCaseSensitive()) {
-                        ord.add(criteriaBuilder.asc(orderPaths.get(s.getAttribute())));
-                    } else {
-                        ord.add(criteriaBuilder.asc(criteriaBuilder.upper(orderPaths.get(s.getAttribute()))));
+                ArrayList<Object> res = new ArrayList<Object>(ids.size());
+                for (Object id : ids) {
+                    Object o = loaded.get(id);
+                    if (o != null) {
+                        res.add(o);
                     }
-                } else {
-                    if (s.getIsCaseSensitive()) {
-                        ord.add(criteriaBuilder.desc(orderPaths.get(s.getAttribute())));
-                    } else {
-                        ord.add(criteriaBuilder.desc(criteriaBuilder.upper(orderPaths.get(s.getAttribute()))));
+                }
+                SlowQueryLog.record(entityClass, "list", filter, order, start, limit, res.size(), fp.getIdsJpql() + "; " + fp.getFetchByIdsJpql(), slow);
+                Metrics.rows(entityClass, Metrics.LIST, res.size());
+                return res;
+            }
+            Query q = rem.createQuery(fp.getFetchJpql());
+            plan.bind(q, filter);
+            if (limit != null) {
+                q.setMaxResults(limit);
+            }
+            if (start != null) {
+                q.setFirstResult(start);
+            }
+            List res = q.getResultList();
+            SlowQueryLog.record(entityClass, "list", filter, order, start, limit, res.size(), fp.getFetchJpql(), slow);
+            if (fp.isCollectionFetch()) {
+                Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                ArrayList<Object> distinct = new ArrayList<Object>(res.size());
+                for (Object o : res) {
+                    if (seen.add(o)) {
+                        distinct.add(o);
                     }
                 }
+                Metrics.rows(entityClass, Metrics.LIST, distinct.size());
+                return distinct;
             }
-            criteriaQuery.orderBy(ord);
+            Metrics.rows(entityClass, Metrics.LIST, res.size());
+            return res;
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in LIST", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
         }
-        Query q = em.createQuery(criteriaQuery);
-        if (limit != null) {
-            q.setMaxResults(limit);
+    }
+
+    /**
+     * Elenco dei soli attributi indicati degli oggetti che soddisfano il
+     * filtro. Gli attributi possono essere percorsi puntati su entità
+     * correlate (es., "cliente.ragioneSociale"), come nei filtri, ma devono
+     * terminare con un attributo semplice. Le righe restituite non sono
+     * oggetti gestiti e non vengono aggiunte al contesto di persistenza.
+     *
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param attributes gli attributi da leggere
+     * @return una riga per oggetto, con i valori nell'ordine degli attributi
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public List<Object[]> listProjection(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit, List<String> attributes) throws ServiceException {
+        List rows = projection(filter, order, start, limit, attributes, null);
+        if (attributes.size() == 1) {
+            ArrayList<Object[]> res = new ArrayList<Object[]>(rows.size());
+            for (Object o : rows) {
+                res.add(new Object[]{o});
+            }
+            return res;
         }
-        if (start != null) {
-            q.setFirstResult(start);
+        return rows;
+    }
+
+    /**
+     * Come listProjection, ma ogni riga è una mappa dal percorso
+     * dell'attributo al suo valore.
+     *
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param attributes
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public List<Map<String, Object>> listMaps(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit, List<String> attributes) throws ServiceException {
+        List<Object[]> rows = listProjection(filter, order, start, limit, attributes);
+        ArrayList<Map<String, Object>> res = new ArrayList<Map<String, Object>>(rows.size());
+        for (Object[] row : rows) {
+            LinkedHashMap<String, Object> m = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < row.length; i++) {
+                m.put(attributes.get(i), row[i]);
+            }
+            res.add(m);
+        }
+        return res;
+    }
+
+    /**
+     * Come listProjection, ma ogni riga è un'istanza di resultClass, creata
+     * dal provider JPA con il costruttore che riceve gli attributi nell'ordine
+     * indicato (SELECT NEW).
+     *
+     * @param <D>
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param attributes
+     * @param resultClass
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <D> List<D> listProjection(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit, List<String> attributes, Class<D> resultClass) throws ServiceException {
+        return projection(filter, order, start, limit, attributes, resultClass);
+    }
+
+    private List projection(final Collection<FilterCondition> filter, final List<SortingVerse> order, final Integer start, final Integer limit, final List<String> attributes, final Class resultClass) throws ServiceException {
+        return timed(Metrics.LIST, new Timed<List>() {
+            @Override
+            public List run() throws ServiceException {
+                return doProjection(filter, order, start, limit, attributes, resultClass);
+            }
+        });
+    }
+
+    private List doProjection(Collection<FilterCondition> filter, List<SortingVerse> order, Integer start, Integer limit, List<String> attributes, Class resultClass) throws ServiceException {
+        if (attributes == null || attributes.isEmpty()) {
+            throw new MissingParameterException("attributes", "Nessun attributo da leggere");
         }
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        String jpql = QueryPlanCompiler.projectionJpql(em, entityClass, plan, attributes, resultClass);
         try {
-            List res = q.getResultList();
-            return res;
+            Query q = readEntityManager().createQuery(jpql);
+            plan.bind(q, filter);
+            if (limit != null) {
+                q.setMaxResults(limit);
+            }
+            if (start != null) {
+                q.setFirstResult(start);
+            }
+            return q.getResultList();
         } catch (Exception e) {
-            e.printStackTrace();
+            Logger.getLogger(CRUDService.class).error("Unexpected error in LIST", e);
             throw new ServiceException(e.getMessage(), "Unexpected error");
         }
     }
 
+    /**
+     * Paginazione a chiave (keyset): invece di saltare le prime start righe,
+     * la query riparte dai valori delle chiavi di ordinamento (e dall'id)
+     * dell'ultima riga della pagina precedente, per cui il costo di ogni
+     * pagina non dipende dalla sua posizione. All'ordinamento viene sempre
+     * aggiunto l'id, in modo da rendere univoca la posizione di ogni riga.
+     *
+     * Le righe con chiavi nulle non soddisfano i confronti con cui la query
+     * riparte e verrebbero saltate: gli attributi di ordinamento devono
+     * quindi essere non nulli secondo il metamodello (es., optional = false),
+     * altrimenti viene lanciata una InvalidParameterException. Per ordinare
+     * su attributi facoltativi usare list() o iterate().
+     *
+     * @param filter
+     * @param order
+     * @param after il token restituito dalla pagina precedente, oppure null
+     * per la prima pagina
+     * @param limit il numero massimo di righe della pagina
+     * @return la pagina e il token per la pagina successiva
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public KeysetPage listAfter(final Collection<FilterCondition> filter, final List<SortingVerse> order, final String after, final int limit) throws ServiceException {
+        return timed(Metrics.LIST_AFTER, new Timed<KeysetPage>() {
+            @Override
+            public KeysetPage run() throws ServiceException {
+                return doListAfter(filter, order, after, limit);
+            }
+        });
+    }
+
+    private KeysetPage doListAfter(Collection<FilterCondition> filter, List<SortingVerse> order, String after, int limit) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        if (plan.getKeysetJpql() == null) {
+            throw new ServiceException("Keyset pagination requires a single id attribute in " + entityClass.getName(), "Paginazione non supportata");
+        }
+        if (plan.hasNullableOrder()) {
+            throw new InvalidParameterException("order", order, "La paginazione a chiave richiede attributi di ordinamento non nulli");
+        }
+        Object[] keys = after == null ? null : KeysetToken.decode(plan, after);
+        List<Object[]> rows;
+        try {
+            Query q = plan.createKeysetQuery(readEntityManager(), filter, keys);
+            q.setMaxResults(limit);
+            rows = q.getResultList();
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in LIST", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        }
+        ArrayList<Object> res = new ArrayList<Object>(rows.size());
+        for (Object[] row : rows) {
+            res.add(row[0]);
+        }
+        String next = null;
+        if (!rows.isEmpty() && rows.size() == limit) {
+            Object[] last = rows.get(rows.size() - 1);
+            Object[] lastKeys = new Object[last.length - 1];
+            System.arraycopy(last, 1, lastKeys, 0, lastKeys.length);
+            next = KeysetToken.encode(plan, lastKeys);
+        }
+        Metrics.rows(entityClass, Metrics.LIST_AFTER, res.size());
+        return new KeysetPage(res, next);
+    }
+
     /**
      * Conteggio di tutti gli oggetti del tipo di base.
      *
      * @param filter
      * @return
      */
-    public long count(Collection<FilterCondition> filter) throws ServiceException {
-        CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
-        CriteriaQuery<Long> criteriaQuery = criteriaBuilder.createQuery(Long.class);
-        Root from = criteriaQuery.from(entityClass);
-        Expression countExpression = criteriaBuilder.count(from);
-        criteriaQuery.select(countExpression);
-        Gson gson = new GsonBuilder().setDateFormat("dd/MM/yyyy HH:mm").create();
-        if (filter != null && !filter.isEmpty()) {
-            HashMap<String, Path> filterPaths = new HashMap<String, Path>();
-            for (FilterCondition f : filter) {
-                String attribute = f.getAttribute();
-                String[] ss = attribute.split("\\.");
-                if (ss.length == 1) {
-                    filterPaths.put(attribute, from.get(attribute));
-                } else {
-                    Join j = from.join(ss[0]);
-                    for (int i = 1; i < ss.length - 1; i++) {
-                        j = j.join(ss[i]);
-                    }
-                    filterPaths.put(attribute, j.get(ss[ss.length - 1]));
-                }
+    public long count(final Collection<FilterCondition> filter) throws ServiceException {
+        return timed(Metrics.COUNT, new Timed<Long>() {
+            @Override
+            public Long run() throws ServiceException {
+                return doCount(filter);
             }
-            Predicate p = criteriaBuilder.conjunction();
-            for (FilterCondition f : filter) {
-                if (f.getOperandClassName() != null && !f.getOperandClassName().equals(f.getOperand().getClass().getName())) {
-                    Class c1 = null;
-                    try {
-                        c1 = Class.forName(f.getOperandClassName());
-                    } catch (ClassNotFoundException ex) {
-                        Logger.getLogger(CRUDService.class).error("Class c1 not found in count", ex);
-                    }
-                    f.setOperand(gson.fromJson("\"" + f.getOperand().toString() + "\"", c1));
-                }
-                if (f.getOperand2() != null && f.getOperandClassName() != null && !f.getOperandClassName().equals(f.getOperand().getClass().getName())) {
-                    Class c2 = null;
-                    try {
-                        c2 = Class.forName(f.getOperandClassName());
-                    } catch (ClassNotFoundException ex) {
-                        Logger.getLogger(CRUDService.class).error("Class c2 not found in count", ex);
-                    }
-                    f.setOperand2(gson.fromJson("\"" + f.getOperand2().toString() + "\"", c2));
-                }
-                switch (f.getOperator()) {
-                    case FilterCondition.EQ:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.equal(filterPaths.get(f.getAttribute()), f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.equal(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.GE:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThanOrEqualTo(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThanOrEqualTo(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.GT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThan(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.greaterThan(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThan(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThan(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LE:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThanOrEqualTo(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.lessThanOrEqualTo(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.NEQ:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.notEqual(filterPaths.get(f.getAttribute()), f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.notEqual(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.LK:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.like(filterPaths.get(f.getAttribute()), (String) f.getOperand()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.like(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal));
-                        }
-                        break;
-                    case FilterCondition.BT:
-                        if (f.getIsCaseSensitive()) {
-                            p = criteriaBuilder.and(p, criteriaBuilder.between(filterPaths.get(f.getAttribute()), (Comparable) f.getOperand(), (Comparable) f.getOperand2()));
-                        } else {
-                            Expression<String> literal = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand()));
-                            Expression<String> literal2 = criteriaBuilder.upper(criteriaBuilder.literal((String) f.getOperand2()));
-                            p = criteriaBuilder.and(p, criteriaBuilder.between(criteriaBuilder.upper(filterPaths.get(f.getAttribute())), literal, literal2));
-                        }
-                        break;
-                    case FilterCondition.NEMPTY:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isNotEmpty(filterPaths.get(f.getAttribute())));
-                        break;
-                    case FilterCondition.EMPTY:
-                        p = criteriaBuilder.and(p, criteriaBuilder.isEmpty(filterPaths.get(f.getAttribute())));
-                        break;
+        });
+    }
 
-                }
+    private long doCount(Collection<FilterCondition> filter) throws ServiceException {
+        RowCounter counter = RowCounter.get(entityClass);
+        if (counter != null && (filter == null || filter.isEmpty()) && !em.getTransaction().isActive()) {
+            PendingWrites.settle();
+            try {
+                return counter.get();
+            } catch (Exception e) {
+                Logger.getLogger(CRUDService.class).error("Unexpected error in COUNT", e);
+                throw new ServiceException(e.getMessage(), "Unexpected error");
             }
-            criteriaQuery.where(p);
-        }        
-        Query q = em.createQuery(criteriaQuery);
+        }
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, null);
+        Object[] operands = plan.operands(filter);
+        LruCache<String, Object> cache = queryCache(plan, false);
+        String key = null;
+        long generation = 0;
+        if (cache != null) {
+            key = "C|" + QueryPlanCompiler.canonicalKey(entityClass, filter, null, operands);
+            generation = QueryCache.generation(entityClass);
+            Long res = (Long) cache.get(key);
+            if (res != null) {
+                return res;
+            }
+        }
         try {
-        long res = (Long) q.getSingleResult();
-        return res;
+            long slow = SlowQueryLog.start();
+            Query q = readEntityManager().createQuery(plan.getCountJpql());
+            plan.bind(q, operands);
+            long res = (Long) q.getSingleResult();
+            SlowQueryLog.record(entityClass, "count", filter, null, null, null, 1, plan.getCountJpql(), slow);
+            if (key != null) {
+                QueryCache.put(entityClass, generation, key, res);
+            }
+            return res;
         } catch (Exception e) {
-            e.printStackTrace();
+            Logger.getLogger(CRUDService.class).error("Unexpected error in COUNT", e);
             throw new ServiceException(e.getMessage(), "Unexpected error");
         }
     }
@@ -472,29 +855,297 @@ public abstract class CRUDService implements AutoCloseable {
         return (long) Math.ceil(1.0 * tot / resultsPerPage);
     }
 
+    /**
+     * Legge la pagina indicata (a partire da 1) di tutti gli oggetti del tipo
+     * di riferimento. Gli errori sono lanciati come PersistenceException, per
+     * compatibilità con le versioni precedenti del metodo.
+     *
+     * @param pageNumber
+     * @param resultsPerPage
+     * @return
+     */
     public List listPage(long pageNumber, int resultsPerPage) {
-        ArrayList<Object> res = new ArrayList<Object>();
-        long offset = resultsPerPage * (pageNumber - 1);
-        String query = "SELECT o FROM " + entityClass.getSimpleName() + " o OFFSET " + offset + " LIMIT " + pageNumber;
-        Query q = em.createQuery(query);
-        return q.getResultList();
+        try {
+            return list(null, null, (int) (resultsPerPage * (pageNumber - 1)), resultsPerPage);
+        } catch (ServiceException e) {
+            throw new PersistenceException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Legge una pagina di oggetti e, nella stessa chiamata, il numero totale di
+     * oggetti che soddisfano il filtro. Filtro e operandi sono compilati e
+     * convertiti una sola volta per entrambe le query. A seconda delle opzioni,
+     * il conteggio può essere eseguito in parallelo su un EntityManager
+     * separato (solo al di fuori di una transazione attiva, le cui modifiche
+     * non sarebbero visibili), evitato quando la pagina è incompleta o
+     * sostituito da un totale calcolato di recente per lo stesso filtro. Non
+     * vengono memorizzati i totali calcolati all'interno di una transazione
+     * attiva, che includono modifiche non ancora confermate.
+     *
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param options
+     * @return la pagina con il totale
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public Page listPage(final Collection<FilterCondition> filter, final List<SortingVerse> order, final int start, final int limit, final PageOptions options) throws ServiceException {
+        return timed(Metrics.LIST_PAGE, new Timed<Page>() {
+            @Override
+            public Page run() throws ServiceException {
+                return doListPage(filter, order, start, limit, options);
+            }
+        });
+    }
+
+    private Page doListPage(Collection<FilterCondition> filter, List<SortingVerse> order, int start, int limit, PageOptions options) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        final QueryPlan countPlan = QueryPlanCompiler.compile(em, entityClass, filter, null);
+        final Object[] operands = plan.operands(filter);
+        String key = null;
+        Long total = null;
+        long generation = 0;
+        if (options.getTotalTtl() > 0) {
+            PendingWrites.settle();
+            generation = TotalCache.generation(entityClass);
+            key = QueryPlanCompiler.canonicalKey(entityClass, filter, null, operands);
+            total = TotalCache.get(entityClass, key);
+        }
+        boolean cached = total != null;
+        Future<Long> futureTotal = null;
+        if (total == null && options.getConcurrentCount() && !em.getTransaction().isActive()) {
+            final EntityManagerFactory emf = readEntityManager().getEntityManagerFactory();
+            futureTotal = options.getExecutor().submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    EntityManager countEm = emf.createEntityManager();
+                    try {
+                        Query q = countEm.createQuery(countPlan.getCountJpql());
+                        countPlan.bind(q, operands);
+                        return (Long) q.getSingleResult();
+                    } finally {
+                        countEm.close();
+                    }
+                }
+            });
+        }
+        try {
+            Query q = readEntityManager().createQuery(plan.getSelectJpql());
+            plan.bind(q, operands);
+            q.setFirstResult(start);
+            if (limit > 0) {
+                q.setMaxResults(limit);
+            }
+            List rows = q.getResultList();
+            if (total == null && options.getSkipCountWhenShort() && limit > 0 && rows.size() < limit && (start == 0 || !rows.isEmpty())) {
+                total = (long) start + rows.size();
+                if (futureTotal != null) {
+                    futureTotal.cancel(true);
+                }
+            }
+            if (total == null) {
+                if (futureTotal != null) {
+                    total = futureTotal.get();
+                } else {
+                    Query cq = readEntityManager().createQuery(countPlan.getCountJpql());
+                    countPlan.bind(cq, operands);
+                    total = (Long) cq.getSingleResult();
+                }
+            }
+            if (key != null && !cached && !em.getTransaction().isActive()) {
+                TotalCache.put(entityClass, generation, key, total, options.getTotalTtl());
+            }
+            Metrics.rows(entityClass, Metrics.LIST_PAGE, rows.size());
+            return new Page(rows, total, start, limit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        } catch (ExecutionException e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in COUNT", e.getCause());
+            throw new ServiceException(e.getCause().getMessage(), "Unexpected error");
+        } catch (Exception e) {
+            if (futureTotal != null) {
+                futureTotal.cancel(true);
+            }
+            Logger.getLogger(CRUDService.class).error("Unexpected error in LIST", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        }
+    }
+
+    public Page listPage(Collection<FilterCondition> filter, List<SortingVerse> order, int start, int limit) throws ServiceException {
+        return listPage(filter, order, start, limit, new PageOptions());
     }
 
-    public <T> T update(T o, HashMap<String, Object> params) throws ServiceException {
+    /**
+     * Restituisce un iteratore sugli oggetti che soddisfano il filtro, letti a
+     * blocchi di chunkSize oggetti con la paginazione a chiave. Al di fuori di
+     * una transazione attiva, l'iteratore usa un proprio EntityManager che
+     * viene svuotato ad ogni blocco; all'interno di una transazione usa quello
+     * del servizio, staccando gli oggetti già restituiti. In entrambi i casi la
+     * memoria occupata non dipende dal numero di oggetti letti. L'iteratore
+     * deve essere chiuso se non viene consumato fino in fondo.
+     *
+     * Se un attributo di ordinamento può valere null secondo il metamodello
+     * (attributo facoltativo, associazione facoltativa o collezione nel
+     * percorso), la paginazione a chiave salterebbe le righe con chiavi
+     * nulle: in tal caso i blocchi sono letti per posizione, con costo
+     * crescente per i blocchi successivi. Per usare la paginazione a chiave,
+     * dichiarare gli attributi di ordinamento come non nulli (es.,
+     * optional = false).
+     *
+     * @param <T>
+     * @param filter
+     * @param order
+     * @param chunkSize
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> ChunkIterator<T> iterate(Collection<FilterCondition> filter, List<SortingVerse> order, int chunkSize) throws ServiceException {
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, order);
+        if (em.getTransaction().isActive()) {
+            return new ChunkIterator<T>(em, false, plan, filter, chunkSize);
+        }
+        EntityManagerFactory replica = readReplica();
+        return new ChunkIterator<T>((replica != null ? replica : em.getEntityManagerFactory()).createEntityManager(), true, plan, filter, chunkSize);
+    }
+
+    /**
+     * Invoca callback su ciascun oggetto che soddisfa il filtro, leggendo gli
+     * oggetti a blocchi come iterate(), con la stessa gestione degli
+     * attributi di ordinamento che possono valere null.
+     *
+     * @param <T>
+     * @param filter
+     * @param order
+     * @param chunkSize
+     * @param callback
+     * @return il numero di oggetti elaborati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> long stream(Collection<FilterCondition> filter, List<SortingVerse> order, int chunkSize, EntityCallback<T> callback) throws ServiceException {
+        ChunkIterator<T> it = iterate(filter, order, chunkSize);
+        long n = 0;
+        try {
+            while (it.hasNext()) {
+                callback.process(it.next());
+                n++;
+            }
+        } catch (ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in STREAM", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        } finally {
+            it.close();
+        }
+        return n;
+    }
+
+    /**
+     * Legge in parallelo gli oggetti che soddisfano il filtro, dividendo
+     * l'intervallo dei valori di attribute (intero o data, per default l'id)
+     * in al più partitions partizioni, ciascuna letta a blocchi di batchSize
+     * da un proprio task e un proprio EntityManager, sull'executor condiviso
+     * di ParallelScan. Gli oggetti restituiti non sono gestiti da alcun
+     * EntityManager. L'iteratore va chiuso se non viene letto fino in fondo.
+     *
+     * @param <T>
+     * @param filter
+     * @param attribute l'attributo di partizione, oppure null per l'id
+     * @param partitions
+     * @param ordered se true, i risultati sono restituiti in ordine di
+     * attribute; altrimenti nell'ordine in cui vengono letti
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> ParallelScan<T> scan(Collection<FilterCondition> filter, String attribute, int partitions, boolean ordered) throws ServiceException {
+        return scan(filter, attribute, partitions, ordered, (ExecutorService) null);
+    }
+
+    /**
+     * Come il metodo precedente, leggendo le partizioni sull'executor
+     * indicato.
+     *
+     * @param <T>
+     * @param filter
+     * @param attribute
+     * @param partitions
+     * @param ordered
+     * @param executor l'executor delle partizioni, oppure null per quello
+     * condiviso
+     * @return
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> ParallelScan<T> scan(Collection<FilterCondition> filter, String attribute, int partitions, boolean ordered, ExecutorService executor) throws ServiceException {
+        operations++;
+        try {
+            EntityManager rem = readEntityManager();
+            return ParallelScan.open(rem.getEntityManagerFactory(), rem, entityClass, filter, attribute, partitions, ordered, batchSize, executor);
+        } catch (RejectedExecutionException e) {
+            throw new ServiceException(e.getMessage(), "Servizio occupato");
+        } finally {
+            endOperation();
+        }
+    }
+
+    /**
+     * Invoca callback, sul thread chiamante, su ciascun oggetto letto da
+     * scan().
+     *
+     * @param <T>
+     * @param filter
+     * @param attribute
+     * @param partitions
+     * @param ordered
+     * @param callback
+     * @return il numero di oggetti elaborati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public <T> long scan(Collection<FilterCondition> filter, String attribute, int partitions, boolean ordered, EntityCallback<T> callback) throws ServiceException {
+        ParallelScan<T> it = scan(filter, attribute, partitions, ordered);
+        long n = 0;
+        try {
+            while (it.hasNext()) {
+                callback.process(it.next());
+                n++;
+            }
+        } catch (ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            Logger.getLogger(CRUDService.class).error("Unexpected error in SCAN", e);
+            throw new ServiceException(e.getMessage(), "Unexpected error");
+        } finally {
+            it.close();
+        }
+        return n;
+    }
+
+    public <T> T update(final T o, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.UPDATE, new Timed<T>() {
+            @Override
+            public T run() throws ServiceException {
+                return doUpdate(o, params);
+            }
+        });
+    }
+
+    private <T> T doUpdate(T o, HashMap<String, Object> params) throws ServiceException {
         if (!o.getClass().equals(entityClass)) {
             throw new InvalidClassException(entityClass, o.getClass(), "Classe non valida. Ricevuto oggetto " + o.getClass() + " invece di " + entityClass);
         }
+        long t = Metrics.start();
         validate(o, UPDATE, params);
-        boolean activeTransaction = em.getTransaction().isActive();
-        if (!activeTransaction) {
-            em.getTransaction().begin();
-        }
+        Metrics.phase(entityClass, Metrics.VALIDATE, t);
+        boolean activeTransaction = !beginTransaction();
         T p = null;
         try {
+            t = Metrics.start();
             beforeMerge(o, params);
+            Metrics.phase(entityClass, Metrics.BEFORE, t);
             Class c = o.getClass();
-            Method m = c.getMethod("getId");
-            Integer id = (Integer) m.invoke(o);
+            Object id = getId(o);
             if (id == null) {
                 throw new InvalidParameterException("id", null, "ID NULL");
             }
@@ -503,22 +1154,26 @@ public abstract class CRUDService implements AutoCloseable {
                 throw new InvalidParameterException("id", id, "ID NON VALIDO");
             }
             bind(p, o, params);
+            t = Metrics.start();
             afterMerge(p, params);
+            Metrics.phase(entityClass, Metrics.AFTER, t);
+            entityChanged(id);
         } catch (ServiceException e1) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             throw e1;
         } catch (Exception e2) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             Logger.getLogger(CRUDService.class).error("Unexpected error in UPDATE", e2);
             throw new ServiceException(e2.getMessage(), "Unexpected error");
         }
-        if (!activeTransaction) {
-            em.getTransaction().commit();
-        }
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
         return p;
     }
 
@@ -544,6 +1199,240 @@ public abstract class CRUDService implements AutoCloseable {
         return (T)update(o, new HashMap<String, Object>());
     }
 
+    /**
+     * Aggiorna, con un'unica istruzione UPDATE e senza caricarli, tutti gli
+     * oggetti che soddisfano il filtro, assegnando agli attributi indicati i
+     * valori corrispondenti. I valori sono convertiti nel tipo dell'attributo
+     * se necessario. Gli oggetti eventualmente già presenti nel contesto di
+     * persistenza non vengono aggiornati.
+     *
+     * Se invokeHooks è true, gli oggetti vengono invece letti a blocchi di
+     * batchSize oggetti e, per ciascuno, dopo l'assegnazione dei valori,
+     * vengono invocati validate, beforeMerge e afterMerge, come in update().
+     *
+     * La gestione della transazione è la stessa di update().
+     *
+     * @param filter
+     * @param assignments i nuovi valori, per nome dell'attributo
+     * @param params un insieme di parametri (opzionali) da usare durante
+     * l'aggiornamento
+     * @param invokeHooks
+     * @return il numero di oggetti aggiornati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public int updateWhere(final Collection<FilterCondition> filter, final Map<String, Object> assignments, final HashMap<String, Object> params, final boolean invokeHooks) throws ServiceException {
+        return timed(Metrics.UPDATE_WHERE, new Timed<Integer>() {
+            @Override
+            public Integer run() throws ServiceException {
+                return doUpdateWhere(filter, assignments, params, invokeHooks);
+            }
+        });
+    }
+
+    private int doUpdateWhere(Collection<FilterCondition> filter, Map<String, Object> assignments, HashMap<String, Object> params, boolean invokeHooks) throws ServiceException {
+        if (assignments == null || assignments.isEmpty()) {
+            throw new MissingParameterException("assignments", "Nessun attributo da aggiornare");
+        }
+        ArrayList<String> attributes = new ArrayList<String>(assignments.keySet());
+        EntityMetadata.Property[] properties = new EntityMetadata.Property[attributes.size()];
+        Object[] values = assignments(assignments, attributes, properties);
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, null);
+        String jpql = invokeHooks ? null : QueryPlanCompiler.updateJpql(em, entityClass, plan, attributes);
+        boolean activeTransaction = !beginTransaction();
+        int n = 0;
+        try {
+            if (invokeHooks) {
+                ChunkIterator<Object> it = new ChunkIterator<Object>(em, false, plan, filter, batchSize);
+                try {
+                    while (it.hasNext()) {
+                        Object o = it.next();
+                        for (int i = 0; i < properties.length; i++) {
+                            properties[i].set(o, values[i]);
+                        }
+                        validate(o, UPDATE, params);
+                        beforeMerge(o, params);
+                        afterMerge(o, params);
+                        n++;
+                    }
+                } finally {
+                    it.close();
+                }
+            } else {
+                Query q = em.createQuery(jpql);
+                plan.bind(q, filter);
+                for (int i = 0; i < values.length; i++) {
+                    q.setParameter("a" + i, values[i]);
+                }
+                n = q.executeUpdate();
+            }
+            entitiesChanged();
+        } catch (ServiceException e1) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            throw e1;
+        } catch (Exception e2) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            Logger.getLogger(CRUDService.class).error("Unexpected error in UPDATE", e2);
+            throw new ServiceException(e2.getMessage(), "Unexpected error");
+        }
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+        return n;
+    }
+
+    public int updateWhere(Collection<FilterCondition> filter, Map<String, Object> assignments) throws ServiceException {
+        return updateWhere(filter, assignments, new HashMap<String, Object>(), false);
+    }
+
+    /**
+     * Aggiorna solo gli attributi indicati dell'oggetto con l'id specificato.
+     * Nomi e valori degli attributi sono controllati sul metamodello; id e
+     * versione non sono modificabili. Se la sottoclasse non ridefinisce
+     * validate, beforeMerge o afterMerge, viene eseguito un solo UPDATE
+     * mirato, senza leggere l'oggetto; altrimenti l'oggetto viene letto, gli
+     * attributi vengono impostati e sono invocati validate, beforeMerge e
+     * afterMerge. La gestione della transazione è la stessa di update().
+     * Se l'operazione fallisce, gli attributi dell'oggetto gestito tornano ai
+     * valori precedenti; dopo l'UPDATE mirato, l'eventuale copia dell'oggetto
+     * già presente nel contesto di persistenza viene ricaricata.
+     *
+     * @param id
+     * @param changes i nuovi valori, per nome di attributo
+     * @param params
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public void patch(Object id, Map<String, Object> changes, HashMap<String, Object> params) throws ServiceException {
+        if (id == null) {
+            throw new InvalidParameterException("id", null, "ID NULL");
+        }
+        if (changes == null || changes.isEmpty()) {
+            throw new MissingParameterException("changes", "Nessun attributo da aggiornare");
+        }
+        EntityMetadata.Property idProperty = EntityMetadata.of(em.getMetamodel(), entityClass).getIdProperty();
+        if (idProperty == null) {
+            throw new ServiceException("patch requires a single id attribute in " + entityClass.getName(), "Aggiornamento non supportato");
+        }
+        id = idProperty.convert(id);
+        ArrayList<String> attributes = new ArrayList<String>(changes.keySet());
+        EntityMetadata.Property[] properties = new EntityMetadata.Property[attributes.size()];
+        Object[] values = assignments(changes, attributes, properties);
+        boolean hooks = hasMergeHooks();
+        String jpql = null;
+        QueryPlan plan = null;
+        List<FilterCondition> filter = null;
+        if (!hooks) {
+            filter = Collections.singletonList(new FilterCondition(idProperty.getName(), FilterCondition.EQ, id, true));
+            plan = QueryPlanCompiler.compile(em, entityClass, filter, null);
+            jpql = QueryPlanCompiler.updateJpql(em, entityClass, plan, attributes);
+        }
+        boolean activeTransaction = !beginTransaction();
+        Object o = null;
+        Object[] previous = null;
+        try {
+            if (hooks) {
+                o = em.find(entityClass, id);
+                if (o == null) {
+                    throw new InvalidParameterException("id", id, "ID NON VALIDO");
+                }
+                previous = new Object[properties.length];
+                for (int i = 0; i < properties.length; i++) {
+                    previous[i] = properties[i].get(o);
+                }
+                for (int i = 0; i < properties.length; i++) {
+                    properties[i].set(o, values[i]);
+                }
+                validate(o, UPDATE, params);
+                beforeMerge(o, params);
+                afterMerge(o, params);
+            } else {
+                Query q = em.createQuery(jpql);
+                plan.bind(q, filter);
+                for (int i = 0; i < values.length; i++) {
+                    q.setParameter("a" + i, values[i]);
+                }
+                if (q.executeUpdate() == 0) {
+                    throw new InvalidParameterException("id", id, "ID NON VALIDO");
+                }
+                refreshIfLoaded(id);
+            }
+            entityChanged(id);
+        } catch (ServiceException e1) {
+            restore(o, properties, previous);
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            throw e1;
+        } catch (Exception e2) {
+            restore(o, properties, previous);
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            Logger.getLogger(CRUDService.class).error("Unexpected error in PATCH", e2);
+            throw new ServiceException(e2.getMessage(), "Unexpected error");
+        }
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+    }
+
+    public void patch(Object id, Map<String, Object> changes) throws ServiceException {
+        patch(id, changes, new HashMap<String, Object>());
+    }
+
+    /**
+     * Rimette nell'oggetto gestito i valori precedenti degli attributi
+     * impostati da patch(), così che un errore non lasci modifiche pendenti
+     * nel contesto di persistenza della transazione del chiamante. Se un
+     * valore non può essere ripristinato, l'oggetto viene staccato.
+     */
+    private void restore(Object o, EntityMetadata.Property[] properties, Object[] previous) {
+        if (previous == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < properties.length; i++) {
+                properties[i].set(o, previous[i]);
+            }
+        } catch (InvalidParameterException e) {
+            em.detach(o);
+        }
+    }
+
+    /**
+     * Dopo un UPDATE massivo ricarica l'oggetto con l'id indicato se è già
+     * presente nel contesto di persistenza, che altrimenti conserverebbe i
+     * valori precedenti. Se l'oggetto non è stato caricato non viene letto.
+     */
+    private void refreshIfLoaded(Object id) {
+        Object o = em.getReference(entityClass, id);
+        if (em.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(o)) {
+            em.refresh(o);
+        }
+    }
+
+    /**
+     * Risolve gli attributi da aggiornare e converte i rispettivi valori nel
+     * tipo dell'attributo.
+     */
+    private Object[] assignments(Map<String, Object> assignments, List<String> attributes, EntityMetadata.Property[] properties) throws InvalidParameterException {
+        EntityMetadata metadata = EntityMetadata.of(em.getMetamodel(), entityClass);
+        Object[] values = new Object[attributes.size()];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = metadata.getProperty(attributes.get(i));
+            if (properties[i].isId() || properties[i].isVersion()) {
+                throw new InvalidParameterException(attributes.get(i), assignments.get(attributes.get(i)), "Attributo non modificabile: " + attributes.get(i));
+            }
+            values[i] = properties[i].convert(assignments.get(attributes.get(i)));
+        }
+        return values;
+    }
+
     /**
      * Se esiste una transazione attiva alla chiamata del metodo, essa sarà
      * usata per l'eliminazione dell'oggetto, altrimenti viene creata una nuova
@@ -559,44 +1448,222 @@ public abstract class CRUDService implements AutoCloseable {
      * commit della transazione, a meno che non esistesse già una transazione
      * attiva al momento dell'invocazione del metodo.
      *
-     * @param id
+     * @param id
+     * @param params un insieme di parametri (opzionali) da usare durante la
+     * rimozione
+     * @return l'oggetto rimosso
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public Object delete(final int id, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.DELETE, new Timed<Object>() {
+            @Override
+            public Object run() throws ServiceException {
+                return doDelete(id, params);
+            }
+        });
+    }
+
+    private Object doDelete(int id, HashMap<String, Object> params) throws ServiceException {
+        boolean activeTransaction = !beginTransaction();
+        Object o;
+        try {
+            o = em.find(entityClass, id);
+            long t = Metrics.start();
+            checkRemovable(o, params);
+            Metrics.phase(entityClass, Metrics.VALIDATE, t);
+            t = Metrics.start();
+            beforeRemove(o, params);
+            Metrics.phase(entityClass, Metrics.BEFORE, t);
+            em.remove(o);
+            t = Metrics.start();
+            afterRemove(o, params);
+            Metrics.phase(entityClass, Metrics.AFTER, t);
+            entityChanged(id);
+            rowsChanged(-1);
+        } catch (ServiceException ex) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            throw ex;
+        } catch (Exception ex) {
+            if (!activeTransaction) {
+                em.getTransaction().rollback();
+                discardPending();
+            }
+            Logger.getLogger(CRUDService.class).error("Unexpected error in DELETE", ex);
+            throw new ServiceException(ex.getMessage(), "Unexpected error");
+        }
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+        return o;
+    }
+
+    public Object delete(int id) throws ServiceException {
+        return delete(id, new HashMap<String, Object>());
+    }
+
+    /**
+     * Elimina tutti gli oggetti con gli id indicati. Prima dell'eliminazione
+     * viene invocato findNonRemovable sull'intero insieme di id: se anche un
+     * solo oggetto non è eliminabile, non viene eliminato alcun oggetto e
+     * viene lanciata una DependingObjectsException con gli id degli oggetti
+     * non eliminabili. Gli oggetti vengono quindi eliminati con istruzioni
+     * DELETE su blocchi di inChunkSize id, senza caricarli: i metodi
+     * beforeRemove e afterRemove non vengono invocati e le eliminazioni a
+     * cascata definite sulle relazioni non vengono applicate.
+     *
+     * La gestione della transazione è la stessa di delete(). In una
+     * transazione già attiva, le modifiche in sospeso vengono prima scritte
+     * sul DB (flush), in modo che i controlli e le DELETE ne tengano conto, e
+     * il contesto di persistenza non viene toccato; se invece la transazione
+     * è aperta da deleteAll, al termine il contesto viene svuotato (clear),
+     * scartando gli oggetti caricati dai controlli e quelli eliminati.
+     *
+     * @param ids
      * @param params un insieme di parametri (opzionali) da usare durante la
      * rimozione
-     * @return l'oggetto rimosso
+     * @return il numero di oggetti eliminati
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public Object delete(int id, HashMap<String, Object> params) throws ServiceException {
-        boolean activeTransaction = em.getTransaction().isActive();
-        if (!activeTransaction) {
-            em.getTransaction().begin();
+    public int deleteAll(final Collection<Integer> ids, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.DELETE_ALL, new Timed<Integer>() {
+            @Override
+            public Integer run() throws ServiceException {
+                if (ids == null || ids.isEmpty()) {
+                    return 0;
+                }
+                return doDeleteAll(ids, null, null, params);
+            }
+        });
+    }
+
+    /**
+     * Elimina gli oggetti con gli id indicati o, se filter non è null, quelli
+     * che soddisfano il filtro, selezionandone gli id nella stessa
+     * transazione delle DELETE.
+     */
+    private int doDeleteAll(Collection<Integer> ids, Collection<FilterCondition> filter, QueryPlan where, HashMap<String, Object> params) throws ServiceException {
+        QueryPlan plan = where != null ? where : QueryPlanCompiler.compile(em, entityClass, null, null);
+        if (plan.getIdAttribute() == null) {
+            throw new ServiceException("Bulk delete requires a single id attribute in " + entityClass.getName(), "Eliminazione non supportata");
         }
-        Object o;
+        boolean activeTransaction = !beginTransaction();
+        int n = 0;
         try {
-            o = em.find(entityClass, id);
-            checkRemovable(o, params);
-            beforeRemove(o, params);
-            em.remove(o);
-            afterRemove(o, params);
+            if (activeTransaction) {
+                em.flush();
+            }
+            if (where != null) {
+                Query q = em.createQuery("SELECT DISTINCT o." + plan.getIdAttribute() + plan.getFilterFrom() + plan.getFilterWhere());
+                plan.bind(q, filter);
+                ids = q.getResultList();
+            }
+            ArrayList<Integer> idList = new ArrayList<Integer>(new LinkedHashSet<Integer>(ids));
+            ArrayList<Object> blocked = findNonRemovable(idList, params);
+            if (blocked != null && !blocked.isEmpty()) {
+                throw new DependingObjectsException("Impossibile eliminare " + blocked.size() + " oggetti: esistono oggetti dipendenti", entityClass, blocked);
+            }
+            String jpql = "DELETE FROM " + plan.getEntityName() + " o WHERE o." + plan.getIdAttribute() + " IN :ids";
+            for (int i = 0; i < idList.size(); i += inChunkSize) {
+                Query q = em.createQuery(jpql);
+                q.setParameter("ids", idList.subList(i, Math.min(i + inChunkSize, idList.size())));
+                n += q.executeUpdate();
+            }
+            for (Integer id : idList) {
+                entityChanged(id);
+            }
+            rowsChanged(-n);
+            if (!activeTransaction) {
+                em.clear();
+            }
         } catch (ServiceException ex) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             throw ex;
         } catch (Exception ex) {
             if (!activeTransaction) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             Logger.getLogger(CRUDService.class).error("Unexpected error in DELETE", ex);
             throw new ServiceException(ex.getMessage(), "Unexpected error");
         }
-        if (!activeTransaction) {
-            em.getTransaction().commit();
-        }
-        return o;
+        commitTransaction(activeTransaction);
+        invalidateQueryCaches();
+        return n;
     }
 
-    public Object delete(int id) throws ServiceException {
-        return delete(id, new HashMap<String, Object>());
+    public int deleteAll(Collection<Integer> ids) throws ServiceException {
+        return deleteAll(ids, new HashMap<String, Object>());
+    }
+
+    /**
+     * Elimina tutti gli oggetti che soddisfano il filtro, con gli stessi
+     * controlli e le stesse limitazioni di deleteAll(). Gli id vengono
+     * selezionati nella stessa transazione in cui gli oggetti sono eliminati.
+     *
+     * @param filter
+     * @param params un insieme di parametri (opzionali) da usare durante la
+     * rimozione
+     * @return il numero di oggetti eliminati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    public int deleteWhere(final Collection<FilterCondition> filter, final HashMap<String, Object> params) throws ServiceException {
+        return timed(Metrics.DELETE_WHERE, new Timed<Integer>() {
+            @Override
+            public Integer run() throws ServiceException {
+                return doDeleteAll(null, filter, QueryPlanCompiler.compile(em, entityClass, filter, null), params);
+            }
+        });
+    }
+
+    public int deleteWhere(Collection<FilterCondition> filter) throws ServiceException {
+        return deleteWhere(filter, new HashMap<String, Object>());
+    }
+
+    /**
+     * Restituisce gli id degli oggetti, tra quelli indicati, che non possono
+     * essere eliminati. L'implementazione di base carica gli oggetti a blocchi
+     * di inChunkSize e invoca checkRemovable su ciascuno, considerando non
+     * eliminabili quelli per cui viene lanciata una DependingObjectsException.
+     * Poiché checkRemovable esegue in genere una query per oggetto, il costo
+     * resta proporzionale al numero di id: le sottoclassi il cui
+     * checkRemovable interroga il DB devono ridefinire questo metodo con una
+     * sola query per blocco di inChunkSize id su ciascuna relazione che blocca
+     * l'eliminazione, ad esempio:
+     * <pre>
+     * SELECT DISTINCT l.invoice.id FROM InvoiceLine l WHERE l.invoice.id IN :ids
+     * </pre>
+     * senza caricare gli oggetti da eliminare. Gli oggetti caricati
+     * dall'implementazione di base restano nel contesto di persistenza: viene
+     * svuotato da deleteAll solo se la transazione è stata aperta da
+     * deleteAll stesso.
+     *
+     * @param ids
+     * @param params
+     * @return gli id degli oggetti non eliminabili
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    protected ArrayList<Object> findNonRemovable(List<Integer> ids, HashMap<String, Object> params) throws ServiceException {
+        ArrayList<Object> res = new ArrayList<Object>();
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, null, null);
+        EntityMetadata.Property id = EntityMetadata.of(em.getMetamodel(), entityClass).getProperty(plan.getIdAttribute());
+        String jpql = "SELECT o FROM " + plan.getEntityName() + " o WHERE o." + plan.getIdAttribute() + " IN :ids";
+        for (int i = 0; i < ids.size(); i += inChunkSize) {
+            Query q = em.createQuery(jpql);
+            q.setParameter("ids", ids.subList(i, Math.min(i + inChunkSize, ids.size())));
+            for (Object o : q.getResultList()) {
+                try {
+                    checkRemovable(o, params);
+                } catch (DependingObjectsException e) {
+                    res.add(id.get(o));
+                }
+            }
+        }
+        return res;
     }
 
     /**
@@ -609,12 +1676,15 @@ public abstract class CRUDService implements AutoCloseable {
      * corrisponda effettivamente un cliente. Tale controllo, deve essere
      * effettuato (generalmente) dal metodo beforePersist o beforeMerge.
      *
+     * L'implementazione predefinita non effettua controlli.
+     *
      * @param o the object to create orception
      * @param operationType
      * @param params
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public abstract void validate(Object o, int operationType, HashMap<String, Object> params) throws ServiceException;
+    public void validate(Object o, int operationType, HashMap<String, Object> params) throws ServiceException {
+    }
 
     public void validate(Object o, int operationType) throws ServiceException {
         validate(o, operationType, new HashMap<String, Object>());
@@ -655,22 +1725,48 @@ public abstract class CRUDService implements AutoCloseable {
     public abstract void afterPersist(Object o, HashMap<String, Object> params) throws ServiceException;
 
     /**
-     * This method is called at the beginning of update()
+     * This method is called at the beginning of update(). L'implementazione
+     * predefinita non fa nulla.
      *
      * @param o
      * @param params
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public abstract void beforeMerge(Object o, HashMap<String, Object> params) throws ServiceException;
+    public void beforeMerge(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
 
     /**
-     * This method is called at the end of update()
+     * This method is called at the end of update(). L'implementazione
+     * predefinita non fa nulla.
      *
      * @param o
      * @param params
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public abstract void afterMerge(Object o, HashMap<String, Object> params) throws ServiceException;
+    public void afterMerge(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+
+    /**
+     * Indica se la sottoclasse ridefinisce validate, beforeMerge o afterMerge,
+     * e quindi se un aggiornamento richiede l'entità gestita. Il controllo è
+     * effettuato una sola volta per classe.
+     *
+     * @return
+     */
+    protected boolean hasMergeHooks() {
+        Boolean res = mergeHooks.get(getClass());
+        if (res == null) {
+            try {
+                res = getClass().getMethod("validate", Object.class, int.class, HashMap.class).getDeclaringClass() != CRUDService.class
+                        || getClass().getMethod("beforeMerge", Object.class, HashMap.class).getDeclaringClass() != CRUDService.class
+                        || getClass().getMethod("afterMerge", Object.class, HashMap.class).getDeclaringClass() != CRUDService.class;
+            } catch (NoSuchMethodException e) {
+                res = Boolean.TRUE;
+            }
+            mergeHooks.put(getClass(), res);
+        }
+        return res;
+    }
 
     /**
      * This method is called at the beginning of delete()
@@ -701,24 +1797,47 @@ public abstract class CRUDService implements AutoCloseable {
     public abstract void checkRemovable(Object o, HashMap<String, Object> params) throws ServiceException;
 
     /**
-     * This method copy the attributes of source over target
+     * This method copy the attributes of source over target. L'implementazione
+     * predefinita usa bindChanged; le sottoclassi possono ridefinirlo per una
+     * copia personalizzata.
      *
      * @param target
      * @param source
      * @param params
      * @throws it.zenitlab.crudservice.exception.ServiceException
      */
-    public abstract void bind(Object target, Object source, HashMap<String, Object> params) throws ServiceException;
+    public void bind(Object target, Object source, HashMap<String, Object> params) throws ServiceException {
+        bindChanged(target, source, params);
+    }
+
+    /**
+     * Copia su target gli attributi singoli di source il cui valore è
+     * diverso, esclusi id e versione, tramite un binder costruito una sola
+     * volta per classe dal metamodello. Le associazioni sono confrontate per
+     * id; le collezioni non vengono copiate. I parametri BIND_INCLUDE e
+     * BIND_EXCLUDE, se presenti, limitano gli attributi da copiare.
+     *
+     * @param target l'oggetto gestito
+     * @param source l'oggetto ricevuto
+     * @param params
+     * @return i nomi degli attributi modificati
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
+    protected List<String> bindChanged(Object target, Object source, HashMap<String, Object> params) throws ServiceException {
+        Collection<String> include = params == null ? null : (Collection<String>) params.get(BIND_INCLUDE);
+        Collection<String> exclude = params == null ? null : (Collection<String>) params.get(BIND_EXCLUDE);
+        Class c = EntityMetadata.entityClass(em.getMetamodel(), target.getClass());
+        return EntityBinder.of(em, c).bind(em, target, source, include, exclude);
+    }
 
     public HashSet newObjects(Set s) throws NoSuchMethodException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         HashSet res = new HashSet();
         if (s == null || s.isEmpty()) {
             return res;
         }
-        Class c = s.iterator().next().getClass();
-        Method m = c.getMethod("getId");
         for (Object o : s) {
-            if (m.invoke(o) == null) {
+            Object id = EntityMetadata.isManaged(em.getMetamodel(), o.getClass()) ? getId(o) : beanId(o);
+            if (id == null) {
                 res.add(o);
             }
         }
@@ -730,29 +1849,67 @@ public abstract class CRUDService implements AutoCloseable {
         if (s == null || s.isEmpty()) {
             return res;
         }
-        Class c = s.iterator().next().getClass();
-        Method m = c.getMethod("getId");
         for (Object o : s) {
-            if (m.invoke(o) != null) {
+            Object id = EntityMetadata.isManaged(em.getMetamodel(), o.getClass()) ? getId(o) : beanId(o);
+            if (id != null) {
                 res.add(o);
             }
         }
         return res;
     }
 
+    /**
+     * Restituisce gli oggetti di oldObjects il cui id non compare in
+     * newObjects.
+     *
+     * @param oldObjects
+     * @param newObjects
+     * @return
+     */
     public HashSet deletedObjects(Set oldObjects, Set newObjects) {
-        HashSet res = new HashSet();
-        if (oldObjects == null || oldObjects.isEmpty()) {
-            return res;
-        }
-        if (newObjects == null) {
-            newObjects = new HashSet();
+        return new HashSet(diff(oldObjects, newObjects).getRemoved());
+    }
+
+    /**
+     * Confronta la collezione di entità figlie persistita con quella ricevuta
+     * in un solo passaggio, indicizzando gli elementi per id invece di usare
+     * equals/hashCode. Gli elementi persistiti senza id sono confrontati per
+     * identità. Pensato per la sincronizzazione delle collezioni in
+     * afterMerge.
+     *
+     * @param persisted la collezione dell'entità gestita
+     * @param incoming la collezione ricevuta
+     * @return
+     */
+    public <T> CollectionDiff<T> diff(Collection<T> persisted, Collection<T> incoming) {
+        CollectionDiff<T> res = new CollectionDiff<T>();
+        LinkedHashMap<Object, T> byId = new LinkedHashMap<Object, T>();
+        IdentityHashMap<T, Boolean> transients = new IdentityHashMap<T, Boolean>();
+        if (persisted != null) {
+            for (T o : persisted) {
+                Object id = getId(o);
+                if (id == null) {
+                    transients.put(o, Boolean.TRUE);
+                } else {
+                    byId.put(id, o);
+                }
+            }
         }
-        for (Object o : oldObjects) {
-            if (!newObjects.contains(o)) {
-                res.add(o);
+        if (incoming != null) {
+            for (T o : incoming) {
+                Object id = getId(o);
+                T before = id == null ? null : byId.remove(id);
+                if (before != null) {
+                    res.retained.add(new CollectionDiff.Pair<T>(before, o));
+                } else if (id == null && transients.remove(o) != null) {
+                    res.retained.add(new CollectionDiff.Pair<T>(o, o));
+                } else {
+                    res.added.add(o);
+                }
             }
         }
+        res.removed.addAll(byId.values());
+        res.removed.addAll(transients.keySet());
         return res;
     }
 
@@ -760,42 +1917,353 @@ public abstract class CRUDService implements AutoCloseable {
         if (em.contains(o)) {
             return o;
         }
-        Class c = o.getClass();
-        while (c.getName().contains("$")) {
-            c = c.getSuperclass();
+        Class c = EntityMetadata.entityClass(em.getMetamodel(), o.getClass());
+        Object id = getId(o);
+        if (id == null) {
+            throw new InvalidParameterException("id", null, "ID NULL");
+        }
+        o = (T) em.find(c, id);
+        if (o == null) {
+            throw new InvalidParameterException("id", id, "ID NON VALIDO "+c.getName()+":"+id);
+        }
+        return o;
+    }
+
+    /**
+     * Restituisce l'id di un'entità gestita dal metamodello, di qualsiasi tipo
+     * (Integer, Long, UUID, ...). L'accesso all'attributo id è risolto una
+     * sola volta per classe; per i proxy e le chiavi composte viene usato
+     * PersistenceUnitUtil.getIdentifier. Per gli oggetti di classi non gestite
+     * dal metamodello (es., DTO) viene invocato il metodo getId().
+     *
+     * @param o
+     * @return l'id, oppure null se l'oggetto non ne ha ancora uno
+     */
+    protected Object getId(Object o) {
+        if (!EntityMetadata.isManaged(em.getMetamodel(), o.getClass())) {
+            try {
+                return beanId(o);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(o.getClass().getName() + " is not an entity and has no getId()", e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot invoke getId() of " + o.getClass().getName(), e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Error in getId() of " + o.getClass().getName(), e.getCause());
+            }
+        }
+        Class c = EntityMetadata.entityClass(em.getMetamodel(), o.getClass());
+        EntityMetadata.Property id = EntityMetadata.of(em.getMetamodel(), c).getIdProperty();
+        if (id == null || c != o.getClass()) {
+            return em.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(o);
+        }
+        return id.get(o);
+    }
+
+    private static Object beanId(Object o) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        Method m = idGetters.get(o.getClass());
+        if (m == null) {
+            m = o.getClass().getMethod("getId");
+            idGetters.put(o.getClass(), m);
         }
+        return m.invoke(o);
+    }
+
+    /**
+     * Corpo di un'operazione di cui registrare la durata con timed().
+     */
+    private interface Timed<V> {
+
+        V run() throws ServiceException;
+    }
+
+    /**
+     * Esegue body registrandone la durata nelle statistiche dell'operazione
+     * indicata; un'eccezione lanciata da body viene registrata come errore.
+     */
+    private <V> V timed(String operation, Timed<V> body) throws ServiceException {
+        long t0 = Metrics.start();
+        boolean error = true;
+        operations++;
         try {
-            Method m = c.getMethod("getId");
-            Integer id = (Integer) m.invoke(o);
-            if (id == null) {
-                throw new InvalidParameterException("id", null, "ID NULL");
+            V res = body.run();
+            error = false;
+            return res;
+        } finally {
+            Metrics.record(entityClass, operation, t0, error);
+            endOperation();
+        }
+    }
+
+    /**
+     * Chiude l'EntityManager della replica al termine dell'operazione più
+     * esterna in corso, in modo che il suo contesto di persistenza non cresca
+     * e che le letture successive vedano le modifiche effettuate da altri.
+     */
+    private void endOperation() {
+        if (--operations == 0 && readEm != null) {
+            EM.close(readEm);
+            readEm = null;
+        }
+    }
+
+    /**
+     * Invalida i risultati memorizzati per le query sulla classe di
+     * riferimento. Viene invocato dopo ogni scrittura e, se la scrittura
+     * avviene in una transazione ancora aperta, di nuovo alla sua
+     * conclusione, anche se la transazione viene confermata da un altro
+     * servizio o direttamente sull'EntityManager.
+     */
+    protected void invalidateQueryCaches() {
+        TotalCache.invalidate(entityClass);
+        QueryCache.invalidate(entityClass);
+        if (em.getTransaction().isActive()) {
+            PendingWrites.of(em.getTransaction()).invalidateQueries(entityClass);
+        }
+    }
+
+    /**
+     * @param ids true se vanno memorizzati gli id degli oggetti, che saranno
+     * riletti con readAll(): in tal caso l'entità deve avere un id intero
+     * @return la cache dei risultati delle query, se abilitata e utilizzabile:
+     * all'interno di una transazione i risultati potrebbero dipendere da
+     * modifiche non ancora confermate
+     */
+    private LruCache<String, Object> queryCache(QueryPlan plan, boolean ids) {
+        PendingWrites.settle();
+        LruCache<String, Object> cache = QueryCache.get(entityClass);
+        if (cache == null || plan.getIdAttribute() == null || em.getTransaction().isActive()) {
+            return null;
+        }
+        if (ids) {
+            EntityMetadata.Property id = EntityMetadata.of(em.getMetamodel(), entityClass).getIdProperty();
+            if (id == null || EntityMetadata.wrapper(id.getType()) != Integer.class) {
+                return null;
             }
-            o = (T) em.find(c, id);
+        }
+        return cache;
+    }
+
+    /**
+     * Ricostruisce un risultato di list() memorizzato come elenco di id,
+     * usando la cache degli oggetti e readAll() per gli oggetti mancanti.
+     *
+     * @return gli oggetti, oppure null se alcuni non esistono più
+     */
+    private List rehydrate(List<Object> ids) throws ServiceException {
+        LruCache<Object, Object> entities = entityCache();
+        ArrayList<Object> res = new ArrayList<Object>(ids.size());
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        for (Object id : ids) {
+            Object o = entities == null ? null : cached(entities, id);
+            res.add(o);
             if (o == null) {
-                throw new InvalidParameterException("id", id, "ID NON VALIDO "+c.getName()+":"+id);
+                missing.add((Integer) id);
             }
-            return o;
-        } catch (ServiceException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new ServiceException("Si è verificato un errore di reflection: " + e.getMessage(), "Errore interno");
         }
+        if (missing.isEmpty()) {
+            return res;
+        }
+        Map<Integer, Object> loaded = readAll(missing);
+        for (int i = 0; i < res.size(); i++) {
+            if (res.get(i) == null) {
+                Object o = loaded.get((Integer) ids.get(i));
+                if (o == null) {
+                    return null;
+                }
+                res.set(i, o);
+                if (entities != null) {
+                    entities.put(ids.get(i), EntitySnapshot.take(em, entityClass, o));
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Invalida l'oggetto con l'id indicato nella cache degli oggetti, sia
+     * subito sia alla conclusione della transazione in corso, in modo che non
+     * resti in cache una versione letta da un altro servizio prima del
+     * commit.
+     *
+     * @param id
+     */
+    protected void entityChanged(Object id) {
+        if (EntityCache.get(entityClass) != null) {
+            EntityCache.evict(entityClass, id);
+            if (em.getTransaction().isActive()) {
+                PendingWrites.of(em.getTransaction()).evict(entityClass, id);
+            }
+        }
+    }
+
+    /**
+     * Come entityChanged, per modifiche che possono riguardare qualsiasi
+     * oggetto della classe di riferimento.
+     */
+    protected void entitiesChanged() {
+        if (EntityCache.get(entityClass) != null) {
+            EntityCache.evictAll(entityClass);
+            if (em.getTransaction().isActive()) {
+                PendingWrites.of(em.getTransaction()).evictAll(entityClass);
+            }
+        }
+    }
+
+    /**
+     * Registra la variazione del numero di oggetti della classe, da applicare
+     * al contatore di righe al commit della transazione in corso.
+     *
+     * @param delta
+     */
+    private void rowsChanged(long delta) {
+        if (RowCounter.get(entityClass) != null) {
+            PendingWrites.of(em.getTransaction()).addRows(entityClass, delta);
+        }
+    }
+
+    /**
+     * Memorizza nella cache degli oggetti lo stato di un oggetto appena
+     * salvato. Viene memorizzata una copia (EntitySnapshot), mai l'istanza
+     * gestita dall'EntityManager di questo servizio.
+     *
+     * @param o
+     */
+    private void cacheEntity(Object o) {
+        LruCache<Object, Object> cache = entityCache();
+        if (cache != null) {
+            Object id = getId(o);
+            if (id != null) {
+                cache.put(id, EntitySnapshot.take(em, entityClass, o));
+            }
+        }
+    }
+
+    /**
+     * @return la cache degli oggetti della classe di riferimento, oppure null
+     * se non è abilitata o se gli oggetti della classe non possono essere
+     * memorizzati come EntitySnapshot
+     */
+    private LruCache<Object, Object> entityCache() {
+        PendingWrites.settle();
+        LruCache<Object, Object> cache = EntityCache.get(entityClass);
+        if (cache == null) {
+            return null;
+        }
+        if (!EntitySnapshot.supports(em.getMetamodel(), entityClass)) {
+            if (uncacheable.add(entityClass)) {
+                Logger.getLogger(CRUDService.class).warn("EntityCache enabled for " + entityClass.getName()
+                        + ", which has collections, embedded attributes or no single id: the cache is not used");
+            }
+            return null;
+        }
+        return cache;
+    }
+
+    /**
+     * Legge un oggetto dalla cache, restituendone una nuova copia non gestita.
+     *
+     * @param cache
+     * @param id
+     * @return la copia, oppure null se l'oggetto non è in cache
+     */
+    private Object cached(LruCache<Object, Object> cache, Object id) {
+        EntitySnapshot s = (EntitySnapshot) cache.get(id);
+        return s == null ? null : s.restore(em);
+    }
+
+    private void afterCommit() {
+        primaryUntil = System.currentTimeMillis() + readYourWritesWindow;
+    }
+
+    /**
+     * EntityManager su cui eseguire tutte le letture: read(), readAll(),
+     * list(), listAfter(), listPage(), le proiezioni, count(), iterate() e
+     * scan(). Se per la persistence unit del servizio è registrata una
+     * replica (EM.initReplica), le letture fuori da una transazione sono
+     * eseguite sulla replica, tranne che nei readYourWritesWindow millisecondi
+     * successivi a un commit effettuato dal servizio, in cui restano sul DB
+     * principale per vedere le proprie scritture. Le letture in una
+     * transazione usano sempre il DB principale.
+     * <p>
+     * L'EntityManager della replica vive solo per la durata dell'operazione
+     * in corso e viene chiuso al suo termine: gli oggetti letti dalla replica
+     * sono quindi restituiti non gestiti, le loro modifiche non vengono
+     * salvate se non passando da update(), e le associazioni lazy non
+     * caricate non sono più accessibili (vanno richieste con i percorsi di
+     * fetch).
+     *
+     * @return
+     */
+    protected EntityManager readEntityManager() {
+        EntityManagerFactory replica = readReplica();
+        if (replica == null) {
+            return em;
+        }
+        if (readEm == null || !readEm.isOpen()) {
+            readEm = replica.createEntityManager();
+        }
+        return readEm;
+    }
+
+    /**
+     * @return la replica su cui eseguire ora le letture, oppure null se vanno
+     * eseguite sul DB principale
+     */
+    private EntityManagerFactory readReplica() {
+        if (em.getTransaction().isActive() || System.currentTimeMillis() < primaryUntil) {
+            return null;
+        }
+        return EM.getReplica(em.getEntityManagerFactory());
     }
 
     @Override    
     public void close() {
+        if (readEm != null) {
+            EM.close(readEm);
+            readEm = null;
+        }
+        if (provider != null) {
+            provider.release(em);
+            return;
+        }
         if (em.isOpen()) {
             if (em.getTransaction().isActive()) {
                 em.getTransaction().rollback();
+                discardPending();
             }
             em.close();
         }
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getReadYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    public void setReadYourWritesWindow(long readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    public int getInChunkSize() {
+        return inChunkSize;
+    }
+
+    public void setInChunkSize(int inChunkSize) {
+        this.inChunkSize = inChunkSize;
+    }
+
     public boolean beginTransaction() {
         if (em.getTransaction().isActive()) {
             return false;
         }
+        PendingWrites.ended(em.getTransaction());
         em.getTransaction().begin();
         return true;
     }
@@ -808,8 +2276,18 @@ public abstract class CRUDService implements AutoCloseable {
         if (skipCommit) {
             return;
         }
-        if (em.getTransaction().isActive()) {
-            em.getTransaction().commit();
+        EntityTransaction tx = em.getTransaction();
+        if (tx.isActive()) {
+            long t = Metrics.start();
+            try {
+                tx.commit();
+            } catch (RuntimeException e) {
+                discardPending();
+                throw e;
+            }
+            Metrics.phase(entityClass, Metrics.COMMIT, t);
+            PendingWrites.committed(tx);
+            afterCommit();
         }
     }
 
@@ -823,47 +2301,38 @@ public abstract class CRUDService implements AutoCloseable {
         }
         if (em.getTransaction().isActive()) {
             em.getTransaction().rollback();
+            discardPending();
         }
     }
 
+    /**
+     * Scarta le operazioni previste al commit (aggiornamento del contatore di
+     * righe, invalidazione delle cache), dopo un roll back o un commit
+     * fallito della transazione dell'EntityManager del servizio.
+     */
+    private void discardPending() {
+        PendingWrites.rolledBack(em.getTransaction());
+    }
+
+    /**
+     * Inizializza con collezioni vuote i campi Set, List e Map nulli
+     * dell'oggetto, compresi quelli ereditati. I campi da inizializzare sono
+     * individuati una sola volta per classe.
+     *
+     * @param o
+     * @throws it.zenitlab.crudservice.exception.ServiceException
+     */
     public void initNullCollections(Object o) throws ServiceException {
         if (o == null) {
             return;
         }
-        for (Field f : o.getClass().getDeclaredFields()) {
-            if (Set.class.isAssignableFrom(f.getType())) {
-                boolean accessibile = f.isAccessible();
-                if (!accessibile) {
-                    f.setAccessible(true);
-                }
-                try {
-                    if (f.get(o) == null) {
-                        f.set(o, new HashSet());
-                    }
-                } catch (Exception e) {
-                    System.out.println(e);
-                }
-                if (!accessibile) {
-                    f.setAccessible(false);
-                }
-                //System.out.println(f.getName());
-            } else if (List.class.isAssignableFrom(f.getType())) {
-                boolean accessibile = f.isAccessible();
-                if (!accessibile) {
-                    f.setAccessible(true);
-                }
-                try {
-                    if (f.get(o) == null) {
-                        f.set(o, new ArrayList());
-                    }
-                } catch (Exception e) {
-                    System.out.println(e);
-                }
-                if (!accessibile) {
-                    f.setAccessible(false);
-                }
-                System.out.println(f.getName());
-            }
+        try {
+            CollectionInitializer.of(o.getClass()).apply(o);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            Logger.getLogger(CRUDService.class).error("Cannot initialize collections of " + o.getClass().getName(), e);
+            throw new ServiceException(e.getMessage(), "Errore interno");
         }
-    }    
+    }
 }
\ No newline at end of file
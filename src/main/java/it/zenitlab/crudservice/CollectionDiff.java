@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Differenza tra la collezione di entità figlie già persistita e quella
+ * ricevuta per l'aggiornamento, calcolata per id: gli elementi aggiunti,
+ * quelli mantenuti (con la coppia persistito/ricevuto) e quelli rimossi.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class CollectionDiff<T> {
+
+    List<T> added = new ArrayList<T>();
+    List<Pair<T>> retained = new ArrayList<Pair<T>>();
+    List<T> removed = new ArrayList<T>();
+
+    /**
+     * @return gli elementi ricevuti senza id o con un id non presente nella
+     * collezione persistita
+     */
+    public List<T> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return gli elementi presenti in entrambe le collezioni, nell'ordine
+     * della collezione ricevuta
+     */
+    public List<Pair<T>> getRetained() {
+        return retained;
+    }
+
+    /**
+     * @return gli elementi persistiti non più presenti nella collezione
+     * ricevuta
+     */
+    public List<T> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Elemento mantenuto: l'istanza persistita e quella ricevuta con lo
+     * stesso id.
+     */
+    public static class Pair<T> {
+
+        final T before, after;
+
+        Pair(T before, T after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        public T getBefore() {
+            return before;
+        }
+
+        public T getAfter() {
+            return after;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Piano di inizializzazione delle collezioni nulle di una classe: i campi di
+ * tipo Set, List e Map, comprese le superclassi, con i metodi di accesso e il
+ * costruttore della collezione già risolti. Il piano viene costruito una sola
+ * volta per classe; la sua applicazione si limita ad allocare le collezioni
+ * mancanti.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+class CollectionInitializer {
+
+    private static final ConcurrentHashMap<Class, CollectionInitializer> plans = new ConcurrentHashMap<Class, CollectionInitializer>();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType FACTORY = MethodType.methodType(Object.class);
+
+    private final MethodHandle[] getters, setters, factories;
+
+    private CollectionInitializer(Class c) throws NoSuchMethodException, IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<MethodHandle> g = new ArrayList<MethodHandle>();
+        List<MethodHandle> s = new ArrayList<MethodHandle>();
+        List<MethodHandle> f = new ArrayList<MethodHandle>();
+        for (Class k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+            for (Field field : k.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+                    continue;
+                }
+                MethodHandle factory = factory(lookup, field.getType());
+                if (factory == null) {
+                    continue;
+                }
+                field.setAccessible(true);
+                g.add(lookup.unreflectGetter(field).asType(GETTER));
+                s.add(lookup.unreflectSetter(field).asType(SETTER));
+                f.add(factory);
+            }
+        }
+        getters = g.toArray(new MethodHandle[g.size()]);
+        setters = s.toArray(new MethodHandle[s.size()]);
+        factories = f.toArray(new MethodHandle[f.size()]);
+    }
+
+    static CollectionInitializer of(Class c) throws NoSuchMethodException, IllegalAccessException {
+        CollectionInitializer plan = plans.get(c);
+        if (plan == null) {
+            plan = new CollectionInitializer(c);
+            CollectionInitializer prev = plans.putIfAbsent(c, plan);
+            if (prev != null) {
+                plan = prev;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Costruttore della collezione da assegnare a un campo del tipo indicato:
+     * il tipo stesso, se è una classe concreta con costruttore pubblico senza
+     * argomenti, altrimenti l'implementazione predefinita della sua
+     * interfaccia, se assegnabile al campo. Restituisce null se il campo non è
+     * una collezione da inizializzare o se nessuna delle due è utilizzabile
+     * (es., EnumMap): il campo viene allora ignorato.
+     */
+    private static MethodHandle factory(MethodHandles.Lookup lookup, Class type) throws NoSuchMethodException, IllegalAccessException {
+        if (!Set.class.isAssignableFrom(type) && !List.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type)) {
+            return null;
+        }
+        if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+            try {
+                return lookup.findConstructor(type, MethodType.methodType(void.class)).asType(FACTORY);
+            } catch (NoSuchMethodException e) {
+                // nessun costruttore senza argomenti
+            } catch (IllegalAccessException e) {
+                // costruttore non pubblico
+            }
+        }
+        Class implementation = implementation(type);
+        if (!type.isAssignableFrom(implementation)) {
+            return null;
+        }
+        return lookup.findConstructor(implementation, MethodType.methodType(void.class)).asType(FACTORY);
+    }
+
+    /**
+     * Implementazione predefinita dell'interfaccia di collezione del tipo
+     * indicato.
+     */
+    private static Class implementation(Class type) {
+        if (SortedSet.class.isAssignableFrom(type)) {
+            return TreeSet.class;
+        } else if (Set.class.isAssignableFrom(type)) {
+            return HashSet.class;
+        } else if (List.class.isAssignableFrom(type)) {
+            return ArrayList.class;
+        } else if (SortedMap.class.isAssignableFrom(type)) {
+            return TreeMap.class;
+        }
+        return HashMap.class;
+    }
+
+    void apply(Object o) throws Throwable {
+        for (int i = 0; i < getters.length; i++) {
+            if ((Object) getters[i].invokeExact(o) == null) {
+                setters[i].invokeExact(o, (Object) factories[i].invokeExact());
+            }
+        }
+    }
+}
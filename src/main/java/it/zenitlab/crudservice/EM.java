@@ -17,37 +17,153 @@
 package it.zenitlab.crudservice;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
 /**
+ * Registro delle EntityManagerFactory, una per persistence unit, e del
+ * provider usato dai CRUDService per ottenere gli EntityManager. La prima
+ * persistence unit inizializzata è quella predefinita. Solo l'inizializzazione
+ * è sincronizzata: l'accesso alle factory e la creazione degli EntityManager
+ * non acquisiscono lock.
  *
  * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
  * @author Michele Milidoni <michelemilidoni@gmail.com>
  */
 public class EM {
 
-    private static EntityManagerFactory emf;
+    private static volatile EntityManagerFactory emf;
+    private static final ConcurrentHashMap<String, EntityManagerFactory> units = new ConcurrentHashMap<String, EntityManagerFactory>();
+    private static final ConcurrentHashMap<EntityManagerFactory, EntityManagerFactory> replicas = new ConcurrentHashMap<EntityManagerFactory, EntityManagerFactory>();
+    private static volatile EntityManagerProvider provider = new EntityManagerProvider() {
+
+        @Override
+        public EntityManager getEntityManager(String persistenceUnit) {
+            return getFactory(persistenceUnit).createEntityManager();
+        }
+
+        @Override
+        public void release(EntityManager em) {
+            close(em);
+        }
+    };
 
     private EM() {
     }    
 
-    public static synchronized void init(String persistenceUnit) {
-        if (emf == null) {
-            emf = Persistence.createEntityManagerFactory(
-                    persistenceUnit);
-        }
+    public static void init(String persistenceUnit) {
+        init(persistenceUnit, null);
     }
 
     public static synchronized void init(String persistenceUnit, Map parameters) {
+        EntityManagerFactory f = units.get(persistenceUnit);
+        if (f == null) {
+            f = parameters == null ? Persistence.createEntityManagerFactory(persistenceUnit)
+                    : Persistence.createEntityManagerFactory(persistenceUnit, parameters);
+            units.put(persistenceUnit, f);
+        }
         if (emf == null) {
-            emf = Persistence.createEntityManagerFactory(
-                    persistenceUnit, parameters);
+            emf = f;
+        }
+    }
+
+    /**
+     * Registra replicaUnit come replica in sola lettura di persistenceUnit:
+     * i CRUDService della persistence unit principale eseguono su di essa le
+     * letture fuori da una transazione.
+     *
+     * @param persistenceUnit la persistence unit principale, già
+     * inizializzata, oppure null per quella predefinita
+     * @param replicaUnit la persistence unit della replica
+     * @param parameters
+     */
+    public static synchronized void initReplica(String persistenceUnit, String replicaUnit, Map parameters) {
+        EntityManagerFactory primary = getFactory(persistenceUnit);
+        EntityManagerFactory replica = units.get(replicaUnit);
+        if (replica == null) {
+            replica = parameters == null ? Persistence.createEntityManagerFactory(replicaUnit)
+                    : Persistence.createEntityManagerFactory(replicaUnit, parameters);
+            units.put(replicaUnit, replica);
+        }
+        replicas.put(primary, replica);
+    }
+
+    public static void initReplica(String persistenceUnit, String replicaUnit) {
+        initReplica(persistenceUnit, replicaUnit, null);
+    }
+
+    /**
+     * @param primary
+     * @return la factory della replica registrata per primary, oppure null
+     */
+    public static EntityManagerFactory getReplica(EntityManagerFactory primary) {
+        return replicas.get(primary);
+    }
+
+    /**
+     * @param persistenceUnit il nome della persistence unit, oppure null per
+     * quella predefinita
+     * @return la factory della persistence unit
+     * @throws IllegalStateException se la persistence unit non è stata
+     * inizializzata
+     */
+    public static EntityManagerFactory getFactory(String persistenceUnit) {
+        EntityManagerFactory f = persistenceUnit == null ? emf : units.get(persistenceUnit);
+        if (f == null) {
+            throw new IllegalStateException("Persistence unit " + (persistenceUnit == null ? "" : persistenceUnit + " ") + "not initialized");
         }
+        return f;
+    }
+
+    public static EntityManagerFactory getFactory() {
+        return getFactory(null);
+    }
+
+    public static EntityManagerProvider getProvider() {
+        return provider;
     }
 
-    public static synchronized EntityManager getInstance() {
-        return emf.createEntityManager();
+    public static void setProvider(EntityManagerProvider provider) {
+        EM.provider = provider;
+    }
+
+    /**
+     * Con il provider predefinito restituisce ogni volta un nuovo
+     * EntityManager, che il chiamante deve chiudere. Con un
+     * ThreadBoundEntityManagerProvider, all'interno di uno scope restituisce
+     * invece l'EntityManager condiviso dallo scope: le modifiche e le
+     * transazioni sono visibili a tutti i servizi dello scope, e close() non
+     * ha effetto, perché l'EntityManager viene chiuso solo alla fine dello
+     * scope.
+     *
+     * @return un EntityManager della persistence unit predefinita, ottenuto
+     * dal provider corrente
+     */
+    public static EntityManager getInstance() {
+        return provider.getEntityManager(null);
+    }
+
+    /**
+     * Come getInstance(), per la persistence unit indicata.
+     *
+     * @param persistenceUnit
+     * @return
+     */
+    public static EntityManager getInstance(String persistenceUnit) {
+        return provider.getEntityManager(persistenceUnit);
+    }
+
+    /**
+     * Chiude l'EntityManager, annullando l'eventuale transazione aperta.
+     */
+    static void close(EntityManager em) {
+        if (em.isOpen()) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            em.close();
+        }
     }
 }
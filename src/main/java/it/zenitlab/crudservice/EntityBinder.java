@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+
+/**
+ * Copia degli attributi singoli di un'entità su un'altra istanza della stessa
+ * classe, costruita una sola volta per classe a partire dal metamodello. Sono
+ * copiati solo gli attributi il cui valore è effettivamente diverso, in modo
+ * che il provider JPA aggiorni solo le colonne modificate. Id e versione non
+ * vengono mai copiati; le associazioni sono confrontate per id. Gli oggetti
+ * incorporati (@Embedded) sono copiati attributo per attributo nell'istanza
+ * di target, creata se manca, in modo che source e target non condividano la
+ * stessa istanza. Se target o source sono proxy lazy, gli attributi con
+ * accesso al campo sono letti e scritti attraverso getter e setter (vedi
+ * EntityMetadata.Property).
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class EntityBinder {
+
+    private static final ConcurrentHashMap<Class, EntityBinder> binders = new ConcurrentHashMap<Class, EntityBinder>();
+
+    private final EntityMetadata.Property[] properties;
+
+    private EntityBinder(EntityMetadata metadata) {
+        List<EntityMetadata.Property> res = new ArrayList<EntityMetadata.Property>();
+        for (EntityMetadata.Property p : metadata.properties.values()) {
+            if (!p.isId() && !p.isVersion() && p.setter != null) {
+                res.add(p);
+            }
+        }
+        properties = res.toArray(new EntityMetadata.Property[res.size()]);
+    }
+
+    public static EntityBinder of(EntityManager em, Class entityClass) {
+        EntityBinder b = binders.get(entityClass);
+        if (b == null) {
+            b = new EntityBinder(EntityMetadata.of(em.getMetamodel(), entityClass));
+            EntityBinder prev = binders.putIfAbsent(entityClass, b);
+            if (prev != null) {
+                b = prev;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Copia su target gli attributi di source con valore diverso.
+     *
+     * @param em l'EntityManager di target, usato per i riferimenti alle
+     * entità associate
+     * @param target
+     * @param source
+     * @param include se non null, i soli attributi da copiare
+     * @param exclude se non null, gli attributi da non copiare
+     * @return i nomi degli attributi modificati
+     * @throws InvalidParameterException se un valore non è assegnabile
+     */
+    public List<String> bind(EntityManager em, Object target, Object source, Collection<String> include, Collection<String> exclude) throws InvalidParameterException {
+        List<String> changed = new ArrayList<String>();
+        PersistenceUnitUtil util = null;
+        for (EntityMetadata.Property p : properties) {
+            if ((include != null && !include.contains(p.name)) || (exclude != null && exclude.contains(p.name))) {
+                continue;
+            }
+            Object after = p.get(source);
+            Object before = p.get(target);
+            if (p.isAssociation()) {
+                if (after == null ? before == null : before != null && before == after) {
+                    continue;
+                }
+                if (after != null) {
+                    if (util == null) {
+                        util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+                    }
+                    Object id = util.getIdentifier(after);
+                    if (id != null) {
+                        if (before != null && id.equals(util.getIdentifier(before))) {
+                            continue;
+                        }
+                        after = em.getReference(p.type, id);
+                    }
+                }
+            } else if (p.isEmbedded() && after != null) {
+                Object copy = before != null ? before : newInstance(p.type);
+                if (EntityBinder.of(em, p.type).bind(em, copy, after, null, null).isEmpty() && before != null) {
+                    continue;
+                }
+                after = copy;
+            } else if (same(before, after)) {
+                continue;
+            }
+            p.set(target, after);
+            changed.add(p.name);
+        }
+        return changed;
+    }
+
+    private static Object newInstance(Class c) {
+        try {
+            Constructor k = c.getDeclaredConstructor();
+            k.setAccessible(true);
+            return k.newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot instantiate " + c.getName(), e);
+        }
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof Date && b instanceof Date) {
+            // Timestamp.equals(Date) è sempre false
+            return ((Date) a).getTime() == ((Date) b).getTime();
+        }
+        if (a.getClass().isArray()) {
+            return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+        }
+        return a.equals(b);
+    }
+}
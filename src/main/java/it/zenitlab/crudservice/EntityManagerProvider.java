@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Fornisce gli EntityManager ai CRUDService creati senza un EntityManager
+ * esplicito. Il provider in uso si imposta con EM.setProvider; quello
+ * predefinito crea un nuovo EntityManager ad ogni richiesta.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public interface EntityManagerProvider {
+
+    /**
+     * @param persistenceUnit il nome della persistence unit, oppure null per
+     * quella predefinita
+     * @return un EntityManager della persistence unit
+     */
+    EntityManager getEntityManager(String persistenceUnit);
+
+    /**
+     * Restituisce al provider un EntityManager ottenuto con
+     * getEntityManager, alla chiusura del servizio che lo usava.
+     *
+     * @param em
+     */
+    void release(EntityManager em);
+}
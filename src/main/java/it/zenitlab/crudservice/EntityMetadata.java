@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.query.QueryPlan;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Informazioni su una classe di entità ricavate una sola volta dal
+ * metamodello JPA: attributi singoli, con i relativi tipi e metodi (o campi)
+ * di accesso già risolti. L'accesso ai valori avviene tramite MethodHandle,
+ * senza ricerche per riflessione ad ogni chiamata.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class EntityMetadata {
+
+    private static final ConcurrentHashMap<Class, EntityMetadata> registry = new ConcurrentHashMap<Class, EntityMetadata>();
+    private static final ConcurrentHashMap<Class, Class> entityClasses = new ConcurrentHashMap<Class, Class>();
+    private static final ConcurrentHashMap<Class, Boolean> managedClasses = new ConcurrentHashMap<Class, Boolean>();
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    final Class entityClass;
+    final HashMap<String, Property> properties = new HashMap<String, Property>();
+    Property idProperty;
+
+    private EntityMetadata(Metamodel metamodel, Class entityClass) {
+        this.entityClass = entityClass;
+        ManagedType type = metamodel.managedType(entityClass);
+        boolean singleId = type instanceof IdentifiableType && ((IdentifiableType) type).hasSingleIdAttribute();
+        for (Object o : type.getAttributes()) {
+            Attribute a = (Attribute) o;
+            if (a instanceof SingularAttribute) {
+                Property p = new Property(entityClass, (SingularAttribute) a);
+                properties.put(a.getName(), p);
+                if (singleId && p.id) {
+                    idProperty = p;
+                }
+            }
+        }
+    }
+
+    public static EntityMetadata of(Metamodel metamodel, Class entityClass) {
+        EntityMetadata m = registry.get(entityClass);
+        if (m == null) {
+            m = new EntityMetadata(metamodel, entityClass);
+            EntityMetadata prev = registry.putIfAbsent(entityClass, m);
+            if (prev != null) {
+                m = prev;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Restituisce la classe di entità a cui appartiene la classe indicata,
+     * risalendo le superclassi nel caso di proxy generati dal provider JPA
+     * (es., Cliente_$$_javassist_1). Il risultato viene memorizzato per classe.
+     *
+     * @param metamodel
+     * @param c
+     * @return la classe di entità, oppure c stessa se non è gestita dal
+     * metamodello
+     */
+    public static Class entityClass(Metamodel metamodel, Class c) {
+        Class res = entityClasses.get(c);
+        if (res == null) {
+            res = c;
+            for (Class k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+                try {
+                    metamodel.managedType(k);
+                    res = k;
+                    break;
+                } catch (IllegalArgumentException e) {
+                    // non gestita: può essere un proxy
+                }
+            }
+            entityClasses.put(c, res);
+        }
+        return res;
+    }
+
+    /**
+     * @param metamodel
+     * @param c
+     * @return true se la classe, o la classe di entità di cui è un proxy, è
+     * gestita dal metamodello
+     */
+    public static boolean isManaged(Metamodel metamodel, Class c) {
+        Boolean res = managedClasses.get(c);
+        if (res == null) {
+            try {
+                metamodel.managedType(entityClass(metamodel, c));
+                res = Boolean.TRUE;
+            } catch (IllegalArgumentException e) {
+                res = Boolean.FALSE;
+            }
+            managedClasses.put(c, res);
+        }
+        return res;
+    }
+
+    public Class getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * @return l'attributo id, oppure null se l'entità non ha un unico
+     * attributo id (es., chiave composta con @IdClass)
+     */
+    public Property getIdProperty() {
+        return idProperty;
+    }
+
+    /**
+     * Legge l'id dell'oggetto, di qualsiasi tipo (Integer, Long, UUID, ...).
+     * L'oggetto deve essere un'istanza della classe di entità e non un proxy:
+     * per i proxy va usato PersistenceUnitUtil.getIdentifier.
+     *
+     * @param o
+     * @return l'id, oppure null se l'oggetto non ne ha ancora uno
+     */
+    public Object getId(Object o) {
+        if (idProperty == null) {
+            throw new IllegalStateException(entityClass.getName() + " has no single id attribute");
+        }
+        return idProperty.get(o);
+    }
+
+    public Set<String> getAttributeNames() {
+        return properties.keySet();
+    }
+
+    /**
+     * Restituisce l'attributo singolo (non collezione) con il nome indicato.
+     *
+     * @param attribute
+     * @return
+     * @throws InvalidParameterException se l'attributo non esiste
+     */
+    public Property getProperty(String attribute) throws InvalidParameterException {
+        Property p = properties.get(attribute);
+        if (p == null) {
+            throw new InvalidParameterException(attribute, null, "Attributo non valido: " + attribute);
+        }
+        return p;
+    }
+
+    public Object get(Object o, String attribute) throws InvalidParameterException {
+        return getProperty(attribute).get(o);
+    }
+
+    public void set(Object o, String attribute, Object value) throws InvalidParameterException {
+        getProperty(attribute).set(o, value);
+    }
+
+    /**
+     * Attributo singolo di un'entità, con i metodi di accesso risolti. Per gli
+     * attributi con accesso al campo vengono risolti anche il getter e il
+     * setter pubblici, se presenti, usati per gli oggetti la cui classe non è
+     * quella dell'entità (es., proxy lazy): i campi di un proxy non contengono
+     * lo stato dell'oggetto, per cui leggerli o scriverli direttamente
+     * restituirebbe valori vuoti e perderebbe le modifiche.
+     */
+    public static class Property {
+
+        final String name;
+        final Class type;
+        final boolean id, version, association, embedded;
+        final Class owner;
+        MethodHandle getter, setter;
+        MethodHandle proxyGetter, proxySetter;
+
+        Property(Class owner, SingularAttribute a) {
+            this.owner = owner;
+            name = a.getName();
+            type = a.getJavaType();
+            id = a.isId();
+            version = a.isVersion();
+            association = a.isAssociation();
+            embedded = a.getPersistentAttributeType() == Attribute.PersistentAttributeType.EMBEDDED;
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Member m = a.getJavaMember();
+            try {
+                if (m instanceof Field) {
+                    Field field = (Field) m;
+                    field.setAccessible(true);
+                    getter = lookup.unreflectGetter(field).asType(GETTER);
+                    setter = lookup.unreflectSetter(field).asType(SETTER);
+                    String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+                    Method g = publicMethod(field.getDeclaringClass(), "get" + suffix);
+                    if (g == null && (field.getType() == boolean.class || field.getType() == Boolean.class)) {
+                        g = publicMethod(field.getDeclaringClass(), "is" + suffix);
+                    }
+                    Method s = publicMethod(field.getDeclaringClass(), "set" + suffix, field.getType());
+                    if (g != null && s != null) {
+                        proxyGetter = lookup.unreflect(g).asType(GETTER);
+                        proxySetter = lookup.unreflect(s).asType(SETTER);
+                    }
+                } else if (m instanceof Method) {
+                    Method method = (Method) m;
+                    method.setAccessible(true);
+                    getter = lookup.unreflect(method).asType(GETTER);
+                    String setterName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+                    try {
+                        Method s = method.getDeclaringClass().getDeclaredMethod(setterName, method.getReturnType());
+                        s.setAccessible(true);
+                        setter = lookup.unreflect(s).asType(SETTER);
+                    } catch (NoSuchMethodException e) {
+                        setter = null;
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access " + name + " of " + m.getDeclaringClass().getName(), e);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Class getType() {
+            return type;
+        }
+
+        public boolean isId() {
+            return id;
+        }
+
+        public boolean isVersion() {
+            return version;
+        }
+
+        public boolean isAssociation() {
+            return association;
+        }
+
+        public boolean isEmbedded() {
+            return embedded;
+        }
+
+        public Object get(Object o) {
+            MethodHandle h = proxyGetter != null && o.getClass() != owner ? proxyGetter : getter;
+            try {
+                return (Object) h.invokeExact(o);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot read " + name + " of " + o.getClass().getName(), e);
+            }
+        }
+
+        public void set(Object o, Object value) throws InvalidParameterException {
+            if (setter == null) {
+                throw new InvalidParameterException(name, value, "Attributo non modificabile: " + name);
+            }
+            MethodHandle h = proxySetter != null && o.getClass() != owner ? proxySetter : setter;
+            try {
+                h.invokeExact(o, value);
+            } catch (ClassCastException e) {
+                throw new InvalidParameterException(name, value, "Valore non valido per l'attributo " + name);
+            } catch (NullPointerException e) {
+                throw new InvalidParameterException(name, value, "Valore non valido per l'attributo " + name);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot write " + name + " of " + o.getClass().getName(), e);
+            }
+        }
+
+        /**
+         * Converte il valore nel tipo dell'attributo, se necessario (es., una
+         * data ricevuta come stringa).
+         *
+         * @param value
+         * @return
+         * @throws InvalidParameterException se il valore non è convertibile
+         */
+        public Object convert(Object value) throws InvalidParameterException {
+            if (value == null || wrapper(type).isInstance(value)) {
+                if (value == null && type.isPrimitive()) {
+                    throw new InvalidParameterException(name, null, "Valore nullo per l'attributo " + name);
+                }
+                return value;
+            }
+            try {
+                Object res = QueryPlan.convert(value, wrapper(type).getName());
+                if (res != null && wrapper(type).isInstance(res)) {
+                    return res;
+                }
+            } catch (RuntimeException e) {
+                // valore non convertibile
+            }
+            throw new InvalidParameterException(name, value, "Valore non valido per l'attributo " + name);
+        }
+    }
+
+    private static Method publicMethod(Class c, String name, Class... parameterTypes) {
+        try {
+            Method m = c.getMethod(name, parameterTypes);
+            m.setAccessible(true);
+            return m;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    static Class wrapper(Class c) {
+        if (!c.isPrimitive()) {
+            return c;
+        }
+        if (c == int.class) {
+            return Integer.class;
+        } else if (c == long.class) {
+            return Long.class;
+        } else if (c == boolean.class) {
+            return Boolean.class;
+        } else if (c == double.class) {
+            return Double.class;
+        } else if (c == float.class) {
+            return Float.class;
+        } else if (c == short.class) {
+            return Short.class;
+        } else if (c == byte.class) {
+            return Byte.class;
+        }
+        return Character.class;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * Copia immutabile dello stato di un'entità, usata dalla cache degli oggetti
+ * al posto delle istanze gestite da un EntityManager. Contiene i valori degli
+ * attributi singoli (date, calendari e array vengono copiati) e, per le
+ * associazioni, il solo id dell'oggetto collegato. Ogni lettura dalla cache
+ * ricostruisce una nuova istanza non gestita, per cui le modifiche fatte da
+ * un chiamante non sono visibili agli altri.
+ * <p>
+ * Sono supportate solo le entità senza collezioni né attributi embedded, con
+ * un unico attributo id e un costruttore senza argomenti; per le altre la
+ * cache non viene usata.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+final class EntitySnapshot {
+
+    private static final ConcurrentHashMap<Class, Plan> plans = new ConcurrentHashMap<Class, Plan>();
+    private static final Plan UNSUPPORTED = new Plan(null, null);
+
+    private final Plan plan;
+    private final Object[] values;
+
+    private EntitySnapshot(Plan plan, Object[] values) {
+        this.plan = plan;
+        this.values = values;
+    }
+
+    private static final class Plan {
+
+        final EntityMetadata.Property[] properties;
+        final MethodHandle constructor;
+
+        Plan(EntityMetadata.Property[] properties, MethodHandle constructor) {
+            this.properties = properties;
+            this.constructor = constructor;
+        }
+    }
+
+    private static Plan plan(Metamodel metamodel, Class entityClass) {
+        Plan p = plans.get(entityClass);
+        if (p == null) {
+            p = UNSUPPORTED;
+            ManagedType type = metamodel.managedType(entityClass);
+            EntityMetadata metadata = EntityMetadata.of(metamodel, entityClass);
+            if (type.getPluralAttributes().isEmpty() && metadata.getIdProperty() != null) {
+                ArrayList<EntityMetadata.Property> properties = new ArrayList<EntityMetadata.Property>();
+                boolean supported = true;
+                for (String name : metadata.getAttributeNames()) {
+                    EntityMetadata.Property property = metadata.properties.get(name);
+                    if (property.isEmbedded() || property.setter == null) {
+                        supported = false;
+                        break;
+                    }
+                    properties.add(property);
+                }
+                if (supported) {
+                    try {
+                        Constructor c = entityClass.getDeclaredConstructor();
+                        c.setAccessible(true);
+                        MethodHandle constructor = MethodHandles.lookup().unreflectConstructor(c)
+                                .asType(MethodType.methodType(Object.class));
+                        p = new Plan(properties.toArray(new EntityMetadata.Property[properties.size()]), constructor);
+                    } catch (NoSuchMethodException e) {
+                        // senza costruttore vuoto la classe non è supportata
+                    } catch (IllegalAccessException e) {
+                        // idem
+                    }
+                }
+            }
+            plans.put(entityClass, p);
+        }
+        return p;
+    }
+
+    /**
+     * @param metamodel
+     * @param entityClass
+     * @return true se gli oggetti della classe possono essere memorizzati
+     * come snapshot
+     */
+    static boolean supports(Metamodel metamodel, Class entityClass) {
+        return plan(metamodel, entityClass) != UNSUPPORTED;
+    }
+
+    /**
+     * Copia lo stato dell'oggetto, che deve essere un'istanza di una classe
+     * supportata.
+     *
+     * @param em l'EntityManager a cui appartiene l'oggetto
+     * @param entityClass
+     * @param o
+     * @return
+     */
+    static EntitySnapshot take(EntityManager em, Class entityClass, Object o) {
+        Plan plan = plan(em.getMetamodel(), entityClass);
+        if (plan == UNSUPPORTED) {
+            throw new IllegalArgumentException(entityClass.getName() + " cannot be cached");
+        }
+        PersistenceUnitUtil util = em.getEntityManagerFactory().getPersistenceUnitUtil();
+        Object[] values = new Object[plan.properties.length];
+        for (int i = 0; i < values.length; i++) {
+            EntityMetadata.Property p = plan.properties[i];
+            Object v = p.get(o);
+            if (p.isAssociation()) {
+                values[i] = v == null ? null : util.getIdentifier(v);
+            } else {
+                values[i] = copy(v);
+            }
+        }
+        return new EntitySnapshot(plan, values);
+    }
+
+    /**
+     * Ricostruisce una nuova istanza non gestita con lo stato memorizzato.
+     * Gli oggetti collegati sono riferimenti (getReference) dell'EntityManager
+     * indicato.
+     *
+     * @param em
+     * @return
+     */
+    Object restore(EntityManager em) {
+        Object o;
+        try {
+            o = (Object) plan.constructor.invokeExact();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot instantiate cached entity", e);
+        }
+        for (int i = 0; i < values.length; i++) {
+            EntityMetadata.Property p = plan.properties[i];
+            Object v = values[i];
+            if (p.isAssociation()) {
+                v = v == null ? null : em.getReference(p.getType(), v);
+            } else {
+                v = copy(v);
+            }
+            if (v == null && p.getType().isPrimitive()) {
+                continue;
+            }
+            try {
+                p.set(o, v);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot restore " + p.getName() + " of cached entity", e);
+            }
+        }
+        return o;
+    }
+
+    private static Object copy(Object v) {
+        if (v instanceof Date) {
+            return ((Date) v).clone();
+        }
+        if (v instanceof Calendar) {
+            return ((Calendar) v).clone();
+        }
+        if (v != null && v.getClass().isArray()) {
+            int length = Array.getLength(v);
+            Object res = Array.newInstance(v.getClass().getComponentType(), length);
+            System.arraycopy(v, 0, res, 0, length);
+            return res;
+        }
+        return v;
+    }
+}
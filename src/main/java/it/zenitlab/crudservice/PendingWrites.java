@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.cache.EntityCache;
+import it.zenitlab.crudservice.cache.QueryCache;
+import it.zenitlab.crudservice.cache.RowCounter;
+import it.zenitlab.crudservice.query.TotalCache;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityTransaction;
+
+/**
+ * Effetti delle scritture di una transazione da applicare alla sua
+ * conclusione: aggiornamento del contatore di righe, invalidazione della
+ * cache degli oggetti e di quella dei risultati. Sono associati alla
+ * transazione e non al servizio che ha scritto, perché la transazione può
+ * essere aperta e confermata da un altro servizio che condivide
+ * l'EntityManager, oppure direttamente con em.getTransaction().commit().
+ * <p>
+ * Se la transazione viene conclusa da un CRUDService, gli effetti sono
+ * applicati (commit) o scartati (roll back) subito. Altrimenti l'esito non è
+ * noto: la conclusione viene rilevata alla successiva chiamata di settle(),
+ * eseguita prima di ogni accesso alle cache e al contatore, che considera le
+ * modifiche come possibilmente confermate: le cache vengono invalidate e i
+ * contatori coinvolti riletti dal DB.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+final class PendingWrites {
+
+    private static final ConcurrentHashMap<EntityTransaction, PendingWrites> open = new ConcurrentHashMap<EntityTransaction, PendingWrites>();
+
+    private final HashMap<Class, Long> rows = new HashMap<Class, Long>();
+    private final HashMap<Class, HashSet<Object>> evictions = new HashMap<Class, HashSet<Object>>();
+    private final HashSet<Class> evictAll = new HashSet<Class>(), queries = new HashSet<Class>();
+
+    private PendingWrites() {
+    }
+
+    /**
+     * @param tx una transazione attiva
+     * @return gli effetti in sospeso della transazione
+     */
+    static PendingWrites of(EntityTransaction tx) {
+        settle();
+        PendingWrites p = open.get(tx);
+        if (p == null) {
+            p = new PendingWrites();
+            PendingWrites prev = open.putIfAbsent(tx, p);
+            if (prev != null) {
+                p = prev;
+            }
+        }
+        return p;
+    }
+
+    synchronized void addRows(Class entityClass, long delta) {
+        Long n = rows.get(entityClass);
+        rows.put(entityClass, n == null ? delta : n + delta);
+    }
+
+    synchronized void evict(Class entityClass, Object id) {
+        HashSet<Object> ids = evictions.get(entityClass);
+        if (ids == null) {
+            ids = new HashSet<Object>();
+            evictions.put(entityClass, ids);
+        }
+        ids.add(id);
+    }
+
+    synchronized void evictAll(Class entityClass) {
+        evictAll.add(entityClass);
+    }
+
+    synchronized void invalidateQueries(Class entityClass) {
+        queries.add(entityClass);
+    }
+
+    /**
+     * Applica gli effetti di una transazione confermata.
+     *
+     * @param tx
+     */
+    static void committed(EntityTransaction tx) {
+        PendingWrites p = open.remove(tx);
+        if (p != null) {
+            p.apply(true);
+        }
+    }
+
+    /**
+     * Scarta gli effetti di una transazione annullata.
+     *
+     * @param tx
+     */
+    static void rolledBack(EntityTransaction tx) {
+        open.remove(tx);
+    }
+
+    /**
+     * Applica gli effetti di una transazione conclusa con esito non noto.
+     *
+     * @param tx
+     */
+    static void ended(EntityTransaction tx) {
+        PendingWrites p = open.remove(tx);
+        if (p != null) {
+            p.apply(false);
+        }
+    }
+
+    /**
+     * Applica gli effetti delle transazioni concluse al di fuori di un
+     * CRUDService.
+     */
+    static void settle() {
+        if (open.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<EntityTransaction, PendingWrites> e : open.entrySet()) {
+            if (!isActive(e.getKey()) && open.remove(e.getKey(), e.getValue())) {
+                e.getValue().apply(false);
+            }
+        }
+    }
+
+    private static boolean isActive(EntityTransaction tx) {
+        try {
+            return tx.isActive();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param committed true se la transazione è stata confermata, false se
+     * l'esito non è noto
+     */
+    private synchronized void apply(boolean committed) {
+        for (Map.Entry<Class, Long> e : rows.entrySet()) {
+            RowCounter counter = RowCounter.get(e.getKey());
+            if (counter != null && e.getValue() != 0) {
+                if (committed) {
+                    counter.add(e.getValue());
+                } else {
+                    counter.invalidate();
+                }
+            }
+        }
+        for (Class c : queries) {
+            TotalCache.invalidate(c);
+            QueryCache.invalidate(c);
+        }
+        for (Class c : evictAll) {
+            EntityCache.evictAll(c);
+        }
+        for (Map.Entry<Class, HashSet<Object>> e : evictions.entrySet()) {
+            if (!evictAll.contains(e.getKey())) {
+                for (Object id : e.getValue()) {
+                    EntityCache.evict(e.getKey(), id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import javax.persistence.EntityManager;
+import org.apache.log4j.Logger;
+
+/**
+ * Provider che associa gli EntityManager al thread corrente all'interno di uno
+ * scope (es., una richiesta HTTP, delimitata da un filtro con begin() ed
+ * end()): tutti i CRUDService creati nello scope condividono lo stesso
+ * EntityManager per persistence unit, che viene chiuso solo alla fine dello
+ * scope. Fuori da uno scope si comporta come il provider predefinito.
+ * <p>
+ * L'EntityManager condiviso viene restituito attraverso un proxy su cui
+ * close() non ha effetto, in modo che nessun servizio possa chiuderlo agli
+ * altri. Le transazioni vanno confermate prima della chiusura del servizio che
+ * le ha aperte: quando l'EntityManager viene restituito (CRUDService.close())
+ * dall'ultimo servizio che lo stava usando, un'eventuale transazione ancora
+ * attiva, ad esempio perché il servizio è terminato con un errore, viene
+ * annullata e il contesto di persistenza svuotato, così da non coinvolgere i
+ * servizi successivi dello scope. La chiusura di un servizio annidato (es.,
+ * un servizio di supporto creato e chiuso all'interno di un'operazione di un
+ * altro servizio) non tocca quindi la transazione del servizio esterno. Gli
+ * EntityManager ottenuti con EM.getInstance() contano come in uso fino alla
+ * fine dello scope, in cui le transazioni rimaste aperte vengono comunque
+ * annullate.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ThreadBoundEntityManagerProvider implements EntityManagerProvider {
+
+    private final ThreadLocal<HashMap<String, EntityManager>> scope = new ThreadLocal<HashMap<String, EntityManager>>();
+
+    /**
+     * Apre uno scope sul thread corrente. Se uno scope è già aperto, viene
+     * riusato.
+     */
+    public void begin() {
+        if (scope.get() == null) {
+            scope.set(new HashMap<String, EntityManager>());
+        }
+    }
+
+    /**
+     * Chiude lo scope del thread corrente e i suoi EntityManager, annullando
+     * le transazioni rimaste aperte.
+     */
+    public void end() {
+        HashMap<String, EntityManager> ems = scope.get();
+        scope.remove();
+        if (ems == null) {
+            return;
+        }
+        for (EntityManager em : ems.values()) {
+            EM.close(((Scoped) Proxy.getInvocationHandler(em)).target);
+        }
+    }
+
+    public boolean isBound() {
+        return scope.get() != null;
+    }
+
+    @Override
+    public EntityManager getEntityManager(String persistenceUnit) {
+        HashMap<String, EntityManager> ems = scope.get();
+        if (ems == null) {
+            return EM.getFactory(persistenceUnit).createEntityManager();
+        }
+        EntityManager em = ems.get(persistenceUnit);
+        if (em == null || !em.isOpen()) {
+            em = (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                    new Class[]{EntityManager.class}, new Scoped(EM.getFactory(persistenceUnit).createEntityManager()));
+            ems.put(persistenceUnit, em);
+        }
+        ((Scoped) Proxy.getInvocationHandler(em)).holders++;
+        return em;
+    }
+
+    @Override
+    public void release(EntityManager em) {
+        HashMap<String, EntityManager> ems = scope.get();
+        if (ems == null || !ems.containsValue(em)) {
+            if (Proxy.isProxyClass(em.getClass()) && Proxy.getInvocationHandler(em) instanceof Scoped) {
+                em = ((Scoped) Proxy.getInvocationHandler(em)).target;
+            }
+            EM.close(em);
+            return;
+        }
+        Scoped scoped = (Scoped) Proxy.getInvocationHandler(em);
+        if (scoped.holders > 0 && --scoped.holders > 0) {
+            return;
+        }
+        if (em.isOpen() && em.getTransaction().isActive()) {
+            Logger.getLogger(ThreadBoundEntityManagerProvider.class).warn("Transaction left active by a closed service: rolling back");
+            em.getTransaction().rollback();
+            em.clear();
+        }
+    }
+
+    /**
+     * Inoltra le chiamate all'EntityManager dello scope, tranne close().
+     * Tiene il conto dei servizi che stanno usando l'EntityManager.
+     */
+    private static class Scoped implements InvocationHandler {
+
+        final EntityManager target;
+        int holders;
+
+        Scoped(EntityManager target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close") && method.getParameterTypes().length == 0) {
+                return null;
+            }
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache degli oggetti letti per id, abilitabile per singola classe di entità.
+ * È pensata per le entità di riferimento (es., prodotti, tariffe, utenti)
+ * lette di frequente e modificate raramente. La cache è condivisa tra tutti
+ * i servizi e i thread, ma non contiene istanze gestite: il CRUDService vi
+ * memorizza una copia dello stato di ciascun oggetto e ad ogni lettura ne
+ * restituisce una nuova istanza non gestita, che il chiamante può modificare
+ * liberamente. Le voci vengono aggiornate o invalidate automaticamente dalle
+ * scritture effettuate attraverso un CRUDService.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class EntityCache {
+
+    private static final ConcurrentHashMap<Class, LruCache<Object, Object>> caches = new ConcurrentHashMap<Class, LruCache<Object, Object>>();
+
+    private EntityCache() {
+    }
+
+    /**
+     * Abilita la cache per la classe indicata, sostituendo quella
+     * eventualmente già presente. La cache viene usata solo per le entità
+     * senza collezioni né attributi embedded e con un unico attributo id; per
+     * le altre CRUDService la ignora, segnalandolo con un warning nel log alla
+     * prima lettura.
+     *
+     * @param entityClass
+     * @param maxSize il numero massimo di oggetti in cache
+     * @param ttl la durata delle voci in millisecondi, 0 per non farle scadere
+     */
+    public static void enable(Class entityClass, int maxSize, long ttl) {
+        caches.put(entityClass, new LruCache<Object, Object>(maxSize, ttl));
+    }
+
+    public static void disable(Class entityClass) {
+        caches.remove(entityClass);
+    }
+
+    /**
+     * @param entityClass
+     * @return la cache della classe, oppure null se non abilitata
+     */
+    public static LruCache<Object, Object> get(Class entityClass) {
+        return caches.get(entityClass);
+    }
+
+    public static void evict(Class entityClass, Object id) {
+        LruCache<Object, Object> c = caches.get(entityClass);
+        if (c != null) {
+            c.remove(id);
+        }
+    }
+
+    public static void evictAll(Class entityClass) {
+        LruCache<Object, Object> c = caches.get(entityClass);
+        if (c != null) {
+            c.clear();
+        }
+    }
+}
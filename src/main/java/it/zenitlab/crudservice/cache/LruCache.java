@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache limitata in memoria con politica LRU e scadenza opzionale delle voci,
+ * che tiene traccia di successi, fallimenti ed espulsioni.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class LruCache<K, V> {
+
+    final int maxSize;
+    final long ttl;
+    final LinkedHashMap<K, CacheEntry<V>> map;
+    final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+    /**
+     * @param maxSize il numero massimo di voci
+     * @param ttl la durata delle voci in millisecondi, 0 per non farle scadere
+     */
+    public LruCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > LruCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public V get(K key) {
+        CacheEntry<V> e;
+        synchronized (map) {
+            e = map.get(key);
+            if (e != null && e.expires != 0 && e.expires < System.currentTimeMillis()) {
+                map.remove(key);
+                evictions.incrementAndGet();
+                e = null;
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.value;
+    }
+
+    public void put(K key, V value) {
+        CacheEntry<V> e = new CacheEntry<V>(value, ttl == 0 ? 0 : System.currentTimeMillis() + ttl);
+        synchronized (map) {
+            map.put(key, e);
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Rimuove le voci scadute.
+     */
+    public void purge() {
+        long now = System.currentTimeMillis();
+        synchronized (map) {
+            Iterator<CacheEntry<V>> it = map.values().iterator();
+            while (it.hasNext()) {
+                CacheEntry<V> e = it.next();
+                if (e.expires != 0 && e.expires < now) {
+                    it.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get(), t = h + misses.get();
+        return t == 0 ? 0 : 1.0 * h / t;
+    }
+
+    static class CacheEntry<V> {
+
+        final V value;
+        final long expires;
+
+        CacheEntry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache dei risultati di list() e count(), abilitabile per singola classe di
+ * entità. Le voci sono indicizzate dalla forma canonica di filtro,
+ * ordinamento, start e limit; per list() vengono memorizzati solo gli id degli
+ * oggetti, che sono poi riletti dalla cache degli oggetti (se abilitata) o con
+ * CRUDService.readAll() (per questo i risultati di list() sono memorizzati
+ * solo per le entità con id intero). Qualsiasi scrittura effettuata
+ * attraverso un CRUDService della stessa classe invalida l'intera cache della
+ * classe.
+ * <p>
+ * Ogni invalidazione incrementa la generazione della classe: chi esegue una
+ * query legge la generazione prima di eseguirla e memorizza il risultato con
+ * put(), che lo scarta se nel frattempo la cache è stata invalidata. In questo
+ * modo un risultato letto prima di una scrittura non può essere memorizzato
+ * dopo la sua invalidazione.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryCache {
+
+    private static final ConcurrentHashMap<Class, LruCache<String, Object>> caches = new ConcurrentHashMap<Class, LruCache<String, Object>>();
+    private static final ConcurrentHashMap<Class, AtomicLong> generations = new ConcurrentHashMap<Class, AtomicLong>();
+
+    private QueryCache() {
+    }
+
+    /**
+     * Abilita la cache per la classe indicata, sostituendo quella
+     * eventualmente già presente.
+     *
+     * @param entityClass
+     * @param maxSize il numero massimo di risultati in cache
+     * @param ttl la durata delle voci in millisecondi, 0 per non farle scadere
+     */
+    public static void enable(Class entityClass, int maxSize, long ttl) {
+        caches.put(entityClass, new LruCache<String, Object>(maxSize, ttl));
+    }
+
+    public static void disable(Class entityClass) {
+        caches.remove(entityClass);
+    }
+
+    /**
+     * @param entityClass
+     * @return la cache della classe, oppure null se non abilitata
+     */
+    public static LruCache<String, Object> get(Class entityClass) {
+        return caches.get(entityClass);
+    }
+
+    /**
+     * @param entityClass
+     * @return la generazione corrente della cache della classe, da leggere
+     * prima di eseguire la query il cui risultato sarà passato a put()
+     */
+    public static long generation(Class entityClass) {
+        return generationOf(entityClass).get();
+    }
+
+    /**
+     * Memorizza il risultato di una query, a meno che la cache non sia stata
+     * invalidata dopo la lettura della generazione indicata.
+     *
+     * @param entityClass
+     * @param generation la generazione letta prima di eseguire la query
+     * @param key
+     * @param value
+     */
+    public static void put(Class entityClass, long generation, String key, Object value) {
+        LruCache<String, Object> c = caches.get(entityClass);
+        if (c == null) {
+            return;
+        }
+        AtomicLong g = generationOf(entityClass);
+        synchronized (g) {
+            if (g.get() == generation) {
+                c.put(key, value);
+            }
+        }
+    }
+
+    public static void invalidate(Class entityClass) {
+        AtomicLong g = generationOf(entityClass);
+        synchronized (g) {
+            g.incrementAndGet();
+            LruCache<String, Object> c = caches.get(entityClass);
+            if (c != null) {
+                c.clear();
+            }
+        }
+    }
+
+    private static AtomicLong generationOf(Class entityClass) {
+        AtomicLong g = generations.get(entityClass);
+        if (g == null) {
+            g = new AtomicLong();
+            AtomicLong prev = generations.putIfAbsent(entityClass, g);
+            if (prev != null) {
+                g = prev;
+            }
+        }
+        return g;
+    }
+}
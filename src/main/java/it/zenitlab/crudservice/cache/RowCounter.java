@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.apache.log4j.Logger;
+
+/**
+ * Contatore del numero di oggetti di una classe di entità, usato da
+ * CRUDService.count() in assenza di filtro (e quindi da lastPage()) al posto
+ * di un COUNT sull'intera tabella. Il contatore viene inizializzato alla prima
+ * lettura, aggiornato da create() e delete() dopo il commit e riallineato
+ * periodicamente con il DB, per correggere le scritture effettuate senza
+ * passare da un CRUDService.
+ *
+ * In modalità approssimata, il valore è letto con una query nativa sulle
+ * statistiche del DB, ad esempio per PostgreSQL:
+ * SELECT reltuples::bigint FROM pg_class WHERE relname = 'invoice'
+ * o per MySQL:
+ * SELECT table_rows FROM information_schema.tables WHERE table_name = 'invoice'
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class RowCounter {
+
+    private static final ConcurrentHashMap<Class, RowCounter> counters = new ConcurrentHashMap<Class, RowCounter>();
+    private static ScheduledExecutorService scheduler;
+
+    final Class entityClass;
+    final EntityManagerFactory emf;
+    final String nativeQuery;
+    final AtomicLong value = new AtomicLong();
+    volatile boolean seeded;
+    ScheduledFuture reconciliation;
+    private final Object lock = new Object();
+    private boolean reconciling, staleDuringReconcile;
+    private long deltaDuringReconcile;
+
+    private RowCounter(EntityManagerFactory emf, Class entityClass, String nativeQuery) {
+        this.emf = emf;
+        this.entityClass = entityClass;
+        this.nativeQuery = nativeQuery;
+    }
+
+    /**
+     * Abilita il contatore esatto per la classe indicata.
+     *
+     * @param emf
+     * @param entityClass
+     * @param reconcileInterval ogni quanti millisecondi riallineare il
+     * contatore con il DB, 0 per non riallinearlo
+     * @return
+     */
+    public static RowCounter enable(EntityManagerFactory emf, Class entityClass, long reconcileInterval) {
+        return enable(new RowCounter(emf, entityClass, null), reconcileInterval);
+    }
+
+    /**
+     * Abilita il contatore approssimato per la classe indicata.
+     *
+     * @param emf
+     * @param entityClass
+     * @param nativeQuery la query nativa che restituisce il numero stimato di
+     * righe
+     * @param refreshInterval ogni quanti millisecondi rileggere la stima, 0 per
+     * leggerla una sola volta
+     * @return
+     */
+    public static RowCounter enableApproximate(EntityManagerFactory emf, Class entityClass, String nativeQuery, long refreshInterval) {
+        return enable(new RowCounter(emf, entityClass, nativeQuery), refreshInterval);
+    }
+
+    private static RowCounter enable(final RowCounter counter, long interval) {
+        if (interval > 0) {
+            counter.reconciliation = scheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        counter.reconcile();
+                    } catch (Exception e) {
+                        Logger.getLogger(RowCounter.class).error("Error reconciling row counter of " + counter.entityClass.getName(), e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        disable(counter.entityClass);
+        counters.put(counter.entityClass, counter);
+        return counter;
+    }
+
+    public static void disable(Class entityClass) {
+        RowCounter c = counters.remove(entityClass);
+        if (c != null && c.reconciliation != null) {
+            c.reconciliation.cancel(false);
+        }
+    }
+
+    /**
+     * @param entityClass
+     * @return il contatore della classe, oppure null se non abilitato
+     */
+    public static RowCounter get(Class entityClass) {
+        return counters.get(entityClass);
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "crud-service-row-counter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * @return il numero di oggetti, inizializzando il contatore se necessario
+     */
+    public long get() {
+        if (!seeded) {
+            reconcile();
+        }
+        return value.get();
+    }
+
+    /**
+     * Aggiorna il contatore dopo il commit di creazioni (delta positivo) o
+     * eliminazioni (delta negativo).
+     *
+     * @param delta
+     */
+    public void add(long delta) {
+        synchronized (lock) {
+            if (reconciling) {
+                deltaDuringReconcile += delta;
+            }
+            if (seeded) {
+                value.addAndGet(delta);
+            }
+        }
+    }
+
+    /**
+     * Fa rileggere il numero di oggetti dal DB alla prossima lettura, quando
+     * l'effetto di una scrittura sul contatore non è noto (es., transazione
+     * conclusa senza passare da un CRUDService).
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            if (reconciling) {
+                staleDuringReconcile = true;
+            }
+            seeded = false;
+        }
+    }
+
+    /**
+     * Rilegge il numero di oggetti dal DB. Le variazioni applicate con add()
+     * mentre il conteggio è in corso vengono sommate al valore letto, in modo
+     * che non vadano perse; se nel frattempo il contatore viene invalidato,
+     * il valore letto viene usato, ma sarà riletto alla lettura successiva.
+     */
+    public synchronized void reconcile() {
+        synchronized (lock) {
+            reconciling = true;
+            staleDuringReconcile = false;
+            deltaDuringReconcile = 0;
+        }
+        EntityManager em = emf.createEntityManager();
+        long n = 0;
+        boolean counted = false;
+        try {
+            if (nativeQuery == null) {
+                n = (Long) em.createQuery("SELECT COUNT(o) FROM " + em.getMetamodel().entity(entityClass).getName() + " o").getSingleResult();
+            } else {
+                n = ((Number) em.createNativeQuery(nativeQuery).getSingleResult()).longValue();
+            }
+            counted = true;
+        } finally {
+            em.close();
+            synchronized (lock) {
+                reconciling = false;
+                if (counted) {
+                    value.set(n + deltaDuringReconcile);
+                    seeded = !staleDuringReconcile;
+                }
+            }
+        }
+    }
+
+    public boolean isApproximate() {
+        return nativeQuery != null;
+    }
+
+    public Class getEntityClass() {
+        return entityClass;
+    }
+}
@@ -37,7 +37,6 @@ public class DependingObjectsException extends ServiceException {
     public DependingObjectsException(String message, Class classOfDependingObjects, ArrayList<Object> idOfDependingObjects) {
         super(ServiceException.DEPENDING_OBJECTS, message, message);
         this.classOfDependingObjects=classOfDependingObjects;
-        idOfDependingObjects=new ArrayList<Object>();
         this.idOfDependingObjects=idOfDependingObjects;
     }
     
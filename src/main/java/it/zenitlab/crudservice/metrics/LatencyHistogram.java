@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma delle latenze in microsecondi, a bucket logaritmici: i valori
+ * fino a 16 hanno un bucket ciascuno, oltre ogni potenza di 2 è divisa in 8
+ * bucket, con un errore relativo massimo del 12.5%. La registrazione di un
+ * valore è un solo incremento atomico, senza lock né allocazioni.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 16 + 60 * 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(micros < 0 ? 0 : micros));
+    }
+
+    /**
+     * @param quantile tra 0 e 1 (es., 0.99)
+     * @return il valore, in microsecondi, sotto cui cade la frazione indicata
+     * delle registrazioni; 0 se non ci sono registrazioni
+     */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    static int index(long v) {
+        if (v < 16) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - 3)) & 7;
+        return Math.min(16 + (exp - 4) * 8 + sub, BUCKETS - 1);
+    }
+
+    static long upperBound(int index) {
+        if (index < 16) {
+            return index;
+        }
+        int exp = (index - 16) / 8 + 4;
+        int sub = (index - 16) % 8;
+        return ((8L + sub + 1) << (exp - 3)) - 1;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Registro delle statistiche delle operazioni dei CRUDService, per classe di
+ * entità e operazione, esposte come MBean JMX con nome
+ * it.zenitlab.crudservice:type=Operation|Phase,entity=...,name=.... Le
+ * statistiche sono raccolte solo dopo enable(); quando sono disabilitate, il
+ * costo per operazione si riduce alla lettura di un campo volatile.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class Metrics {
+
+    public static final String CREATE = "create", READ = "read", UPDATE = "update", DELETE = "delete", LIST = "list", COUNT = "count";
+    public static final String CREATE_ALL = "createAll", READ_ALL = "readAll", UPDATE_WHERE = "updateWhere", DELETE_ALL = "deleteAll",
+            DELETE_WHERE = "deleteWhere", LIST_PAGE = "listPage", LIST_AFTER = "listAfter";
+    /**
+     * Fasi delle scritture. Il commit comprende il flush delle modifiche, che
+     * non viene eseguito separatamente per non cambiare il momento in cui
+     * vengono rilevati gli errori.
+     */
+    public static final String VALIDATE = "validate", BEFORE = "before", AFTER = "after", COMMIT = "commit";
+
+    private static final String DOMAIN = "it.zenitlab.crudservice";
+    private static final ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+    private static volatile boolean enabled;
+
+    private Metrics() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return l'istante di inizio in nanosecondi, oppure 0 se le statistiche
+     * sono disabilitate
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Registra la durata di un'operazione iniziata all'istante start.
+     *
+     * @param entityClass
+     * @param operation
+     * @param start il valore restituito da start()
+     * @param error true se l'operazione è terminata con un errore
+     */
+    public static void record(Class entityClass, String operation, long start, boolean error) {
+        if (start != 0) {
+            get(entityClass, operation, "Operation").record(System.nanoTime() - start, error);
+        }
+    }
+
+    /**
+     * Registra la durata di una fase (validate, hook, commit) iniziata
+     * all'istante start.
+     *
+     * @param entityClass
+     * @param phase
+     * @param start il valore restituito da start() o dalla fase precedente
+     * @return l'istante di fine, da usare come inizio della fase successiva,
+     * oppure 0 se le statistiche sono disabilitate
+     */
+    public static long phase(Class entityClass, String phase, long start) {
+        if (start == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        get(entityClass, phase, "Phase").record(now - start, false);
+        return now;
+    }
+
+    /**
+     * Registra il numero di righe restituite da un'operazione.
+     *
+     * @param entityClass
+     * @param operation
+     * @param rows
+     */
+    public static void rows(Class entityClass, String operation, long rows) {
+        if (enabled) {
+            get(entityClass, operation, "Operation").rows(rows);
+        }
+    }
+
+    /**
+     * @param entityClass
+     * @param operation
+     * @return le statistiche dell'operazione, oppure null se non è mai stata
+     * registrata
+     */
+    public static OperationStatsMBean getStats(Class entityClass, String operation) {
+        OperationStats s = stats.get("Operation|" + entityClass.getName() + "|" + operation);
+        return s != null ? s : stats.get("Phase|" + entityClass.getName() + "|" + operation);
+    }
+
+    private static OperationStats get(Class entityClass, String operation, String type) {
+        String key = type + "|" + entityClass.getName() + "|" + operation;
+        OperationStats s = stats.get(key);
+        if (s == null) {
+            s = new OperationStats(entityClass.getName(), operation);
+            OperationStats prev = stats.putIfAbsent(key, s);
+            if (prev != null) {
+                return prev;
+            }
+            register(s, type);
+        }
+        return s;
+    }
+
+    private static void register(OperationStats s, String type) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",entity=" + ObjectName.quote(s.entity) + ",name=" + s.operation);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(s, name);
+            }
+        } catch (Exception e) {
+            Logger.getLogger(Metrics.class).warn("Cannot register MBean for " + s.entity + " " + s.operation, e);
+        }
+    }
+}
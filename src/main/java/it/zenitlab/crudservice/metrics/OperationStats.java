@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistiche di un'operazione su una classe di entità: numero di esecuzioni
+ * e di errori, istogramma delle latenze e, per le letture di elenchi, numero
+ * di righe restituite.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class OperationStats implements OperationStatsMBean {
+
+    final String entity, operation;
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong totalMicros = new AtomicLong();
+    final AtomicLong maxMicros = new AtomicLong();
+    final AtomicLong rows = new AtomicLong();
+    final AtomicLong rowSamples = new AtomicLong();
+    final LatencyHistogram histogram = new LatencyHistogram();
+
+    OperationStats(String entity, String operation) {
+        this.entity = entity;
+        this.operation = operation;
+    }
+
+    void record(long nanos, boolean error) {
+        long micros = nanos / 1000;
+        count.incrementAndGet();
+        if (error) {
+            errors.incrementAndGet();
+        }
+        totalMicros.addAndGet(micros);
+        histogram.record(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    void rows(long n) {
+        rows.addAndGet(n);
+        rowSamples.incrementAndGet();
+    }
+
+    @Override
+    public String getEntity() {
+        return entity;
+    }
+
+    @Override
+    public String getOperation() {
+        return operation;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return histogram.percentile(0.5) / 1000.0;
+    }
+
+    @Override
+    public double getP95Millis() {
+        return histogram.percentile(0.95) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return histogram.percentile(0.99) / 1000.0;
+    }
+
+    @Override
+    public long getRows() {
+        return rows.get();
+    }
+
+    @Override
+    public double getMeanRows() {
+        long n = rowSamples.get();
+        return n == 0 ? 0 : (double) rows.get() / n;
+    }
+
+    @Override
+    public void reset() {
+        count.set(0);
+        errors.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+        rows.set(0);
+        rowSamples.set(0);
+        histogram.reset();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * Iteratore che legge i risultati di una query a blocchi di dimensione fissa,
+ * usando la paginazione a chiave. Se un attributo di ordinamento può valere
+ * null (QueryPlan.hasNullableOrder), i blocchi sono letti invece per
+ * posizione (setFirstResult), sempre con l'id aggiunto all'ordinamento: le
+ * righe con chiavi nulle non soddisfano i confronti della ripartenza a
+ * chiave e verrebbero saltate. Prima di leggere il blocco successivo, gli
+ * oggetti del blocco precedente vengono rimossi dal contesto di persistenza,
+ * per cui la memoria occupata non dipende dal numero di risultati. Se
+ * l'iteratore usa un proprio EntityManager, questo viene svuotato ad ogni
+ * blocco e chiuso al termine; altrimenti le modifiche pendenti vengono
+ * scritte sul DB e i soli oggetti letti vengono staccati.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ChunkIterator<T> implements Iterator<T>, AutoCloseable {
+
+    EntityManager em;
+    boolean ownEntityManager;
+    QueryPlan plan;
+    Collection<FilterCondition> filter;
+    int chunkSize;
+    List chunk;
+    int position, offset;
+    Object[] lastKeys;
+    boolean lastChunk, closed;
+
+    public ChunkIterator(EntityManager em, boolean ownEntityManager, QueryPlan plan, Collection<FilterCondition> filter, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.em = em;
+        this.ownEntityManager = ownEntityManager;
+        this.plan = plan;
+        this.filter = filter;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (chunk != null && position < chunk.size()) {
+            return true;
+        }
+        if (chunk != null) {
+            release();
+            if (lastChunk) {
+                close();
+                return false;
+            }
+        }
+        fetch();
+        if (chunk.isEmpty()) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object row = chunk.get(position++);
+        return (T) (row instanceof Object[] ? ((Object[]) row)[0] : row);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetch() {
+        Query q;
+        boolean keyset = plan.getKeysetJpql() != null && !plan.hasNullableOrder();
+        if (keyset) {
+            q = plan.createKeysetQuery(em, filter, lastKeys);
+        } else if (plan.getKeysetJpql() != null) {
+            q = plan.createKeysetQuery(em, filter, null);
+            q.setFirstResult(offset);
+        } else {
+            q = plan.createSelectQuery(em, filter);
+            q.setFirstResult(offset);
+        }
+        q.setMaxResults(chunkSize);
+        chunk = q.getResultList();
+        position = 0;
+        offset += chunk.size();
+        lastChunk = chunk.size() < chunkSize;
+        if (keyset && !chunk.isEmpty()) {
+            Object[] last = (Object[]) chunk.get(chunk.size() - 1);
+            lastKeys = new Object[last.length - 1];
+            System.arraycopy(last, 1, lastKeys, 0, lastKeys.length);
+        }
+    }
+
+    private void release() {
+        if (ownEntityManager) {
+            em.clear();
+        } else {
+            if (em.getTransaction().isActive()) {
+                em.flush();
+            }
+            for (Object row : chunk) {
+                em.detach(row instanceof Object[] ? ((Object[]) row)[0] : row);
+            }
+        }
+        chunk = null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        chunk = null;
+        if (ownEntityManager && em.isOpen()) {
+            em.close();
+        }
+    }
+}
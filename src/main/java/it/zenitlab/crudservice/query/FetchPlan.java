@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+/**
+ * Query JPQL che caricano, insieme agli oggetti, le entità correlate indicate
+ * da un insieme di percorsi (es., "cliente", "voci.prodotto") con LEFT JOIN
+ * FETCH. Se almeno un percorso attraversa una collezione, ogni oggetto può
+ * comparire in più righe del risultato, che deve essere quindi reso univoco;
+ * inoltre, in caso di paginazione, occorre prima leggere gli id della pagina
+ * e poi caricare gli oggetti con fetchByIdsJpql.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class FetchPlan {
+
+    String fetchJpql, idsJpql, fetchByIdsJpql;
+    boolean collectionFetch;
+
+    FetchPlan() {
+    }
+
+    /**
+     * @return la query con i fetch join, il filtro e l'ordinamento del piano
+     */
+    public String getFetchJpql() {
+        return fetchJpql;
+    }
+
+    /**
+     * @return la query degli id degli oggetti, con il filtro e l'ordinamento
+     * del piano
+     */
+    public String getIdsJpql() {
+        return idsJpql;
+    }
+
+    /**
+     * @return la query con i fetch join degli oggetti con id nel parametro
+     * :ids
+     */
+    public String getFetchByIdsJpql() {
+        return fetchByIdsJpql;
+    }
+
+    public boolean isCollectionFetch() {
+        return collectionFetch;
+    }
+}
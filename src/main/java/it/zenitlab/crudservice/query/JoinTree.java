@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Albero dei join di una query, indicizzato per prefisso del percorso: ogni
+ * prefisso (es., "cliente", "cliente.indirizzo") viene raggiunto con un solo
+ * LEFT JOIN, condiviso da tutte le condizioni, gli ordinamenti e le
+ * proiezioni che lo attraversano. Un join già presente può essere reso
+ * LEFT JOIN FETCH, in modo che un percorso di fetch riusi il join del filtro.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+class JoinTree {
+
+    private final LinkedHashMap<String, String> aliases;
+    private final LinkedHashMap<String, String> joins;
+    private final HashSet<String> fetched;
+
+    JoinTree() {
+        aliases = new LinkedHashMap<String, String>();
+        joins = new LinkedHashMap<String, String>();
+        fetched = new HashSet<String>();
+    }
+
+    private JoinTree(JoinTree other) {
+        aliases = new LinkedHashMap<String, String>(other.aliases);
+        joins = new LinkedHashMap<String, String>(other.joins);
+        fetched = new HashSet<String>(other.fetched);
+    }
+
+    /**
+     * Restituisce l'espressione JPQL del percorso, aggiungendo i join per i
+     * prefissi non ancora presenti.
+     *
+     * @param attribute il percorso, eventualmente puntato
+     * @return
+     */
+    String path(String attribute) {
+        int dot = attribute.lastIndexOf('.');
+        if (dot < 0) {
+            return "o." + attribute;
+        }
+        return alias(attribute.substring(0, dot)) + attribute.substring(dot);
+    }
+
+    private String alias(String prefix) {
+        String alias = aliases.get(prefix);
+        if (alias == null) {
+            int dot = prefix.lastIndexOf('.');
+            String parent = dot < 0 ? "o" : alias(prefix.substring(0, dot));
+            alias = "j" + (aliases.size() + 1);
+            joins.put(prefix, parent + "." + prefix.substring(dot + 1) + " " + alias);
+            aliases.put(prefix, alias);
+        }
+        return alias;
+    }
+
+    /**
+     * @param prefix
+     * @return l'alias del join del prefisso, oppure null se il prefisso non è
+     * ancora raggiunto da alcun join
+     */
+    String joined(String prefix) {
+        return aliases.get(prefix);
+    }
+
+    /**
+     * Rende LEFT JOIN FETCH il join già presente per il prefisso.
+     *
+     * @param prefix
+     */
+    void fetch(String prefix) {
+        fetched.add(prefix);
+    }
+
+    String getJoins() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : joins.entrySet()) {
+            sb.append(fetched.contains(e.getKey()) ? " LEFT JOIN FETCH " : " LEFT JOIN ").append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    JoinTree copy() {
+        return new JoinTree(this);
+    }
+}
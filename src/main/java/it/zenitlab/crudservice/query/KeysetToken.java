@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+/**
+ * Codifica e decodifica dei token opachi della paginazione a chiave. Il token
+ * contiene i valori delle chiavi di ordinamento e l'id dell'ultima riga letta,
+ * oltre a un'impronta della forma della query, per cui non può essere usato
+ * con filtri o ordinamenti diversi da quelli che lo hanno generato. I valori
+ * sono decodificati nei tipi del metamodello, mai in classi indicate dal token.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class KeysetToken {
+
+    private static final Gson gson = new Gson();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private KeysetToken() {
+    }
+
+    public static String encode(QueryPlan plan, Object[] keys) {
+        JsonArray a = new JsonArray();
+        a.add(new JsonPrimitive(plan.getShape().hashCode()));
+        for (Object k : keys) {
+            if (k == null) {
+                a.add(JsonNull.INSTANCE);
+            } else if (k instanceof Date) {
+                a.add(new JsonPrimitive(((Date) k).getTime()));
+            } else {
+                a.add(gson.toJsonTree(k));
+            }
+        }
+        byte[] b = a.toString().getBytes(UTF8);
+        char[] res = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            res[2 * i] = HEX[(b[i] >> 4) & 0xF];
+            res[2 * i + 1] = HEX[b[i] & 0xF];
+        }
+        return new String(res);
+    }
+
+    public static Object[] decode(QueryPlan plan, String token) throws InvalidParameterException {
+        Class[] types = plan.getKeyTypes();
+        try {
+            byte[] b = new byte[token.length() / 2];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = (byte) Integer.parseInt(token.substring(2 * i, 2 * i + 2), 16);
+            }
+            JsonArray a = new JsonParser().parse(new String(b, UTF8)).getAsJsonArray();
+            if (a.size() != types.length + 1 || a.get(0).getAsInt() != plan.getShape().hashCode()) {
+                throw new InvalidParameterException("after", token, "Token di paginazione non valido per questa query");
+            }
+            Object[] keys = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                JsonElement e = a.get(i + 1);
+                if (e.isJsonNull()) {
+                    keys[i] = null;
+                } else if (Date.class.isAssignableFrom(types[i])) {
+                    keys[i] = types[i].getConstructor(long.class).newInstance(e.getAsLong());
+                } else {
+                    keys[i] = gson.fromJson(e, types[i]);
+                }
+            }
+            return keys;
+        } catch (InvalidParameterException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InvalidParameterException("after", token, "Token di paginazione non valido");
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import java.util.List;
+
+/**
+ * Pagina di risultati insieme al numero totale di oggetti che soddisfano il
+ * filtro.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class Page<T> {
+
+    List<T> rows;
+    long total;
+    int start, limit;
+
+    public Page(List<T> rows, long total, int start, int limit) {
+        this.rows = rows;
+        this.total = total;
+        this.start = start;
+        this.limit = limit;
+    }
+
+    public List<T> getRows() {
+        return rows;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public long getLastPage() {
+        return limit <= 0 ? 1 : (long) Math.ceil(1.0 * total / limit);
+    }
+}
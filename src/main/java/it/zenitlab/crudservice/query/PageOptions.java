@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opzioni di CRUDService.listPage().
+ * <ul>
+ * <li>concurrentCount: il conteggio viene eseguito in parallelo alla lettura
+ * della pagina, su un EntityManager separato;</li>
+ * <li>skipCountWhenShort: se la pagina contiene meno righe del limite, il
+ * totale è ricavato senza eseguire il conteggio;</li>
+ * <li>totalTtl: per quanti millisecondi il totale di un filtro può essere
+ * riusato (0 per non riusarlo). Il totale memorizzato viene invalidato da ogni
+ * scrittura effettuata attraverso un CRUDService della stessa classe.</li>
+ * </ul>
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class PageOptions {
+
+    private static ExecutorService defaultExecutor;
+
+    boolean concurrentCount;
+    boolean skipCountWhenShort = true;
+    long totalTtl;
+    ExecutorService executor;
+
+    public PageOptions() {
+    }
+
+    public PageOptions(boolean concurrentCount, boolean skipCountWhenShort, long totalTtl) {
+        this.concurrentCount = concurrentCount;
+        this.skipCountWhenShort = skipCountWhenShort;
+        this.totalTtl = totalTtl;
+    }
+
+    public boolean getConcurrentCount() {
+        return concurrentCount;
+    }
+
+    public void setConcurrentCount(boolean concurrentCount) {
+        this.concurrentCount = concurrentCount;
+    }
+
+    public boolean getSkipCountWhenShort() {
+        return skipCountWhenShort;
+    }
+
+    public void setSkipCountWhenShort(boolean skipCountWhenShort) {
+        this.skipCountWhenShort = skipCountWhenShort;
+    }
+
+    public long getTotalTtl() {
+        return totalTtl;
+    }
+
+    public void setTotalTtl(long totalTtl) {
+        this.totalTtl = totalTtl;
+    }
+
+    /**
+     * @return l'executor su cui eseguire il conteggio concorrente; se non
+     * impostato, un pool condiviso di pochi thread daemon (al più 4) con una
+     * coda limitata: quando è saturo, il conteggio viene eseguito dal thread
+     * chiamante, in modo che il numero di connessioni occupate dai conteggi
+     * resti limitato
+     */
+    public ExecutorService getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (PageOptions.class) {
+            if (defaultExecutor == null) {
+                int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(64), new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "crud-service-count");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        }, new ThreadPoolExecutor.CallerRunsPolicy());
+                pool.allowCoreThreadTimeOut(true);
+                defaultExecutor = pool;
+            }
+            return defaultExecutor;
+        }
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+}
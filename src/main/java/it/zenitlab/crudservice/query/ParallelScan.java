@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Attribute;
+
+/**
+ * Lettura parallela dei risultati di un filtro. L'intervallo dei valori di un
+ * attributo intero o data (per default l'id) viene diviso in partizioni, e
+ * ciascuna partizione viene letta a blocchi, con lo stesso filtro, da un
+ * proprio task, eseguito sull'executor indicato, su un proprio EntityManager.
+ * I risultati sono restituiti come un unico iteratore: in ordine di attributo
+ * di partizione (ordered), oppure nell'ordine in cui vengono letti. Le righe
+ * con attributo di partizione nullo sono escluse. Ogni oggetto viene staccato
+ * dall'EntityManager della sua partizione prima di essere restituito, per cui
+ * non è gestito da alcun EntityManager: le associazioni lazy non ancora
+ * caricate non sono più accessibili.
+ * <p>
+ * Con un executor limitato, le partizioni in eccesso attendono in coda che si
+ * liberi un thread; in modalità ordered le partizioni sono consumate
+ * nell'ordine in cui vengono avviate, per cui la scansione procede comunque.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ParallelScan<T> implements Iterator<T>, AutoCloseable {
+
+    private static final Object END = new Object();
+
+    private static class Failure {
+
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static ExecutorService defaultExecutor;
+
+    final BlockingQueue<Object>[] queues;
+    final Future[] workers;
+    int current, remaining;
+    Object next;
+    volatile boolean closed;
+
+    private ParallelScan(int partitions, boolean ordered, int capacity) {
+        queues = new BlockingQueue[partitions];
+        for (int i = 0; i < partitions; i++) {
+            queues[i] = ordered || i == 0 ? new ArrayBlockingQueue<Object>(capacity) : queues[0];
+        }
+        workers = new Future[partitions];
+        remaining = partitions;
+    }
+
+    /**
+     * Avvia la lettura parallela sull'executor condiviso, un pool di thread
+     * daemon.
+     *
+     * @see #open(EntityManagerFactory, EntityManager, Class, Collection,
+     * String, int, boolean, int, ExecutorService)
+     */
+    public static <T> ParallelScan<T> open(EntityManagerFactory emf, EntityManager em, Class entityClass, Collection<FilterCondition> filter,
+            String attribute, int partitions, boolean ordered, int chunkSize) throws InvalidParameterException {
+        return open(emf, em, entityClass, filter, attribute, partitions, ordered, chunkSize, null);
+    }
+
+    /**
+     * Avvia la lettura parallela.
+     *
+     * @param emf la factory da cui creare gli EntityManager delle partizioni
+     * @param em l'EntityManager con cui calcolare l'intervallo dei valori
+     * @param entityClass
+     * @param filter
+     * @param attribute l'attributo di partizione, intero o data, oppure null
+     * per l'id
+     * @param partitions il numero massimo di partizioni (e di thread)
+     * @param ordered se true, i risultati sono restituiti in ordine crescente
+     * di attributo di partizione
+     * @param chunkSize la dimensione dei blocchi letti da ogni partizione
+     * @param executor l'executor su cui leggere le partizioni, oppure null
+     * per quello condiviso
+     * @return
+     * @throws InvalidParameterException se l'attributo non è valido
+     */
+    public static <T> ParallelScan<T> open(EntityManagerFactory emf, EntityManager em, Class entityClass, Collection<FilterCondition> filter,
+            String attribute, int partitions, boolean ordered, int chunkSize, ExecutorService executor) throws InvalidParameterException {
+        if (partitions <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("partitions and chunkSize must be positive");
+        }
+        QueryPlan plan = QueryPlanCompiler.compile(em, entityClass, filter, null);
+        if (attribute == null) {
+            attribute = plan.getIdAttribute();
+        }
+        if (attribute == null || attribute.contains(".")) {
+            throw new InvalidParameterException("attribute", attribute, "Attributo di partizione non valido: " + attribute);
+        }
+        Attribute a = QueryPlanCompiler.checkPath(em.getMetamodel(), entityClass, "attribute", attribute);
+        Class type = a.getJavaType();
+        if (!integral(type) && !Date.class.isAssignableFrom(type)) {
+            throw new InvalidParameterException("attribute", attribute, "Attributo di partizione non valido: " + attribute);
+        }
+        Query q = em.createQuery("SELECT MIN(o." + attribute + "), MAX(o." + attribute + ")" + plan.getFilterFrom() + plan.getFilterWhere());
+        plan.bind(q, filter);
+        Object[] range = (Object[]) q.getSingleResult();
+        if (range[0] == null) {
+            ParallelScan<T> res = new ParallelScan<T>(0, ordered, 1);
+            res.closed = true;
+            return res;
+        }
+        long lo = toLong(range[0]), hi = toLong(range[1]);
+        long span = hi - lo;
+        int n = span < 0 ? 1 : (int) Math.min(partitions, span + 1);
+        long step = span < 0 ? 0 : span / n + 1;
+        List<FilterCondition> shape = new ArrayList<FilterCondition>();
+        if (filter != null) {
+            shape.addAll(filter);
+        }
+        List<SortingVerse> order = ordered ? Collections.singletonList(new SortingVerse(attribute, SortingVerse.ASC, true)) : null;
+        ParallelScan<T> res = new ParallelScan<T>(n, ordered, chunkSize);
+        for (int i = 0; i < n; i++) {
+            List<FilterCondition> f = new ArrayList<FilterCondition>(shape);
+            f.add(new FilterCondition(attribute, FilterCondition.GE, fromLong(type, lo + i * step), true));
+            if (i < n - 1) {
+                f.add(new FilterCondition(attribute, FilterCondition.LT, fromLong(type, lo + (i + 1) * step), true));
+            } else {
+                f.add(new FilterCondition(attribute, FilterCondition.LE, range[1], true));
+            }
+            QueryPlan partitionPlan = QueryPlanCompiler.compile(em, entityClass, f, order);
+            try {
+                res.start(executor != null ? executor : defaultExecutor(), i, emf, partitionPlan, f, chunkSize);
+            } catch (RejectedExecutionException e) {
+                res.close();
+                throw e;
+            }
+        }
+        return res;
+    }
+
+    private void start(ExecutorService executor, int i, final EntityManagerFactory emf, final QueryPlan plan,
+            final Collection<FilterCondition> filter, final int chunkSize) {
+        final BlockingQueue<Object> queue = queues[i];
+        workers[i] = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                ChunkIterator<Object> it = new ChunkIterator<Object>(emf.createEntityManager(), true, plan, filter, chunkSize);
+                try {
+                    while (!closed && it.hasNext()) {
+                        Object o = it.next();
+                        it.em.detach(o);
+                        push(queue, o);
+                    }
+                    push(queue, END);
+                } catch (InterruptedException e) {
+                    // scansione chiusa
+                } catch (Throwable t) {
+                    try {
+                        push(queue, new Failure(t));
+                    } catch (InterruptedException e) {
+                        // scansione chiusa
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService defaultExecutor() {
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "crud-service-scan");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Accoda o, attendendo finché la coda è piena e la scansione non è stata
+     * chiusa.
+     */
+    private void push(BlockingQueue<Object> queue, Object o) throws InterruptedException {
+        while (!closed && !queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+            // coda piena
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        while (!closed && remaining > 0) {
+            Object o;
+            try {
+                o = queues[current].take();
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while scanning", e);
+            }
+            if (o == END) {
+                remaining--;
+                if (current < queues.length - 1) {
+                    current++;
+                }
+            } else if (o instanceof Failure) {
+                close();
+                Throwable cause = ((Failure) o).cause;
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException(cause.getMessage(), cause);
+            } else {
+                next = o;
+                return true;
+            }
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object res = next;
+        next = null;
+        return (T) res;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future f : workers) {
+            if (f != null) {
+                f.cancel(true);
+            }
+        }
+        for (BlockingQueue<Object> q : queues) {
+            q.clear();
+        }
+    }
+
+    private static boolean integral(Class c) {
+        return c == Integer.class || c == int.class || c == Long.class || c == long.class || c == Short.class || c == short.class;
+    }
+
+    private static long toLong(Object o) {
+        return o instanceof Date ? ((Date) o).getTime() : ((Number) o).longValue();
+    }
+
+    private static Object fromLong(Class type, long v) {
+        if (type == Integer.class || type == int.class) {
+            return (int) v;
+        } else if (type == Long.class || type == long.class) {
+            return v;
+        } else if (type == Short.class || type == short.class) {
+            return (short) v;
+        } else if (type == java.sql.Timestamp.class) {
+            return new java.sql.Timestamp(v);
+        } else if (type == java.sql.Date.class) {
+            return new java.sql.Date(v);
+        }
+        return new Date(v);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import org.apache.log4j.Logger;
+
+/**
+ * Piano di esecuzione compilato a partire dalla forma di un filtro (attributi,
+ * operatori, sensibilità alle maiuscole) e di un ordinamento. Il piano contiene
+ * le query JPQL già generate e i nomi dei parametri: ad ogni esecuzione è
+ * sufficiente associare i valori degli operandi. I piani sono immutabili e
+ * possono essere condivisi tra thread ed EntityManager diversi.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryPlan {
+
+    private static final Gson gson = new GsonBuilder().setDateFormat("dd/MM/yyyy HH:mm").create();
+    private static final ConcurrentHashMap<String, Class> operandClasses = new ConcurrentHashMap<String, Class>();
+
+    final String shape;
+    String entityName, idAttribute;
+    String selectJpql, countJpql;
+    String filterFrom, filterWhere;
+    String selectFrom, orderBy;
+    JoinTree joins;
+    String[] operandParameters, operand2Parameters;
+    String keysetJpql, seekJpql;
+    Class[] keyTypes;
+    boolean nullableOrder;
+
+    QueryPlan(String shape) {
+        this.shape = shape;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    public String getSelectJpql() {
+        return selectJpql;
+    }
+
+    public String getCountJpql() {
+        return countJpql;
+    }
+
+    public String getKeysetJpql() {
+        return keysetJpql;
+    }
+
+    /**
+     * @return true se almeno un attributo di ordinamento può valere null:
+     * in tal caso la ripartenza dalle chiavi dell'ultima riga (seekJpql)
+     * perderebbe le righe con chiavi nulle, che non soddisfano i confronti
+     */
+    public boolean hasNullableOrder() {
+        return nullableOrder;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    /**
+     * @return il nome dell'attributo id, oppure null se l'entità non ha un
+     * unico attributo id
+     */
+    public String getIdAttribute() {
+        return idAttribute;
+    }
+
+    /**
+     * @return true se il filtro richiede join con altre entità
+     */
+    public boolean hasFilterJoins() {
+        return filterFrom.length() > (" FROM " + entityName + " o").length();
+    }
+
+    /**
+     * @return la clausola FROM (con i join) richiesta dal solo filtro, con
+     * radice di alias o
+     */
+    public String getFilterFrom() {
+        return filterFrom;
+    }
+
+    /**
+     * @return la clausola WHERE del filtro, vuota se il filtro non ha
+     * condizioni
+     */
+    public String getFilterWhere() {
+        return filterWhere;
+    }
+
+    public Query createSelectQuery(EntityManager em, Collection<FilterCondition> filter) {
+        Query q = em.createQuery(selectJpql);
+        bind(q, filter);
+        return q;
+    }
+
+    public Query createCountQuery(EntityManager em, Collection<FilterCondition> filter) {
+        Query q = em.createQuery(countJpql);
+        bind(q, filter);
+        return q;
+    }
+
+    /**
+     * Query per la paginazione a chiave (keyset): oltre all'oggetto, ogni riga
+     * contiene i valori delle chiavi di ordinamento seguiti dall'id, che
+     * costituiscono il punto di ripartenza della pagina successiva.
+     *
+     * @param em
+     * @param filter
+     * @param after le chiavi dell'ultima riga della pagina precedente, oppure
+     * null per la prima pagina
+     * @return
+     */
+    public Query createKeysetQuery(EntityManager em, Collection<FilterCondition> filter, Object[] after) {
+        if (keysetJpql == null) {
+            throw new IllegalStateException("Keyset pagination requires a single id attribute");
+        }
+        Query q = em.createQuery(after == null ? keysetJpql : seekJpql);
+        bind(q, filter);
+        if (after != null) {
+            for (int i = 0; i < after.length; i++) {
+                q.setParameter("k" + i, after[i]);
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Tipi delle chiavi di ordinamento della paginazione a chiave, id incluso.
+     *
+     * @return
+     */
+    public Class[] getKeyTypes() {
+        return keyTypes.clone();
+    }
+
+    /**
+     * Associa alla query i valori degli operandi del filtro. Il filtro deve
+     * avere la stessa forma di quello usato per compilare il piano.
+     *
+     * @param q
+     * @param filter
+     */
+    public void bind(Query q, Collection<FilterCondition> filter) {
+        bind(q, operands(filter));
+    }
+
+    /**
+     * Associa alla query valori degli operandi già convertiti con
+     * operands(filter), in modo da poterli riusare su più query.
+     *
+     * @param q
+     * @param operands
+     */
+    public void bind(Query q, Object[] operands) {
+        for (int i = 0; i < operandParameters.length; i++) {
+            if (operandParameters[i] != null) {
+                q.setParameter(operandParameters[i], operands[2 * i]);
+            }
+            if (operand2Parameters[i] != null) {
+                q.setParameter(operand2Parameters[i], operands[2 * i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Converte gli operandi del filtro nelle rispettive classi.
+     *
+     * @param filter
+     * @return gli operandi convertiti, due per ogni condizione
+     */
+    public Object[] operands(Collection<FilterCondition> filter) {
+        Object[] res = new Object[2 * operandParameters.length];
+        if (filter == null) {
+            return res;
+        }
+        int i = 0;
+        for (FilterCondition f : filter) {
+            if (operandParameters[i] != null) {
+                res[2 * i] = convert(f.getOperand(), f.getOperandClassName());
+            }
+            if (operand2Parameters[i] != null) {
+                res[2 * i + 1] = convert(f.getOperand2(), f.getOperand2ClassName());
+            }
+            i++;
+        }
+        return res;
+    }
+
+    /**
+     * Converte l'operando nella classe indicata, se diversa da quella
+     * dell'operando stesso (es., una data ricevuta come stringa).
+     *
+     * @param operand
+     * @param className
+     * @return l'operando convertito
+     */
+    public static Object convert(Object operand, String className) {
+        if (operand == null || className == null || className.equals(operand.getClass().getName())) {
+            return operand;
+        }
+        Class c = operandClasses.get(className);
+        if (c == null) {
+            try {
+                c = Class.forName(className);
+            } catch (ClassNotFoundException ex) {
+                Logger.getLogger(QueryPlan.class).error("Operand class " + className + " not found", ex);
+                return operand;
+            }
+            operandClasses.put(className, c);
+        }
+        return gson.fromJson("\"" + operand.toString() + "\"", c);
+    }
+}
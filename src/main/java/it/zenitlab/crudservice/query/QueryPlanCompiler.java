@@ -0,0 +1,562 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+
+/**
+ * Compila filtri e ordinamenti in piani di esecuzione riutilizzabili. I piani
+ * sono memorizzati per classe di entità e forma del filtro, per cui filtri che
+ * differiscono solo per il valore degli operandi condividono lo stesso piano.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryPlanCompiler {
+
+    private static final int MAX_PLANS = 2048;
+    private static final ConcurrentHashMap<String, QueryPlan> plans = new ConcurrentHashMap<String, QueryPlan>();
+    private static final ConcurrentHashMap<String, String> projections = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentHashMap<String, FetchPlan> fetchPlans = new ConcurrentHashMap<String, FetchPlan>();
+
+    private QueryPlanCompiler() {
+    }
+
+    /**
+     * Restituisce il piano di esecuzione per la forma del filtro e
+     * dell'ordinamento passati, compilandolo se non già presente.
+     *
+     * @param em
+     * @param entityClass
+     * @param filter
+     * @param order
+     * @return il piano di esecuzione
+     * @throws InvalidParameterException se un attributo del filtro o
+     * dell'ordinamento non esiste
+     */
+    public static QueryPlan compile(EntityManager em, Class entityClass, Collection<FilterCondition> filter, List<SortingVerse> order) throws InvalidParameterException {
+        String shape = shapeOf(entityClass, filter, order);
+        QueryPlan plan = plans.get(shape);
+        if (plan == null) {
+            plan = build(em.getMetamodel(), entityClass, filter, order, shape);
+            if (plans.size() >= MAX_PLANS) {
+                plans.clear();
+            }
+            plans.put(shape, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * La forma di un filtro è costituita da classe di entità, attributi,
+     * operatori e sensibilità alle maiuscole delle condizioni e dei criteri di
+     * ordinamento, esclusi i valori degli operandi.
+     *
+     * @param entityClass
+     * @param filter
+     * @param order
+     * @return
+     */
+    public static String shapeOf(Class entityClass, Collection<FilterCondition> filter, List<SortingVerse> order) {
+        StringBuilder sb = new StringBuilder(entityClass.getName());
+        sb.append('|');
+        if (filter != null) {
+            for (FilterCondition f : filter) {
+                sb.append(f.getAttribute()).append(':').append(f.getOperator()).append(':').append(f.getIsCaseSensitive() ? 'S' : 'I').append(';');
+            }
+        }
+        sb.append('|');
+        if (order != null) {
+            for (SortingVerse s : order) {
+                sb.append(s.getAttribute()).append(':').append(s.getVersus()).append(':').append(s.getIsCaseSensitive() ? 'S' : 'I').append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Chiave canonica di un'esecuzione: classe di entità, condizioni del
+     * filtro con i valori degli operandi già convertiti, in ordine
+     * alfabetico (l'ordine delle condizioni non influisce sul risultato), e
+     * criteri di ordinamento, nel loro ordine.
+     *
+     * @param entityClass
+     * @param filter
+     * @param order
+     * @param operands gli operandi convertiti da QueryPlan.operands(filter)
+     * @return
+     */
+    public static String canonicalKey(Class entityClass, Collection<FilterCondition> filter, List<SortingVerse> order, Object[] operands) {
+        StringBuilder sb = new StringBuilder(entityClass.getName());
+        if (filter != null) {
+            ArrayList<String> conditions = new ArrayList<String>(filter.size());
+            int i = 0;
+            for (FilterCondition f : filter) {
+                StringBuilder c = new StringBuilder();
+                c.append(f.getAttribute()).append(':').append(f.getOperator()).append(':').append(f.getIsCaseSensitive() ? 'S' : 'I');
+                appendValue(c, operands[2 * i]);
+                appendValue(c, operands[2 * i + 1]);
+                conditions.add(c.toString());
+                i++;
+            }
+            Collections.sort(conditions);
+            for (String c : conditions) {
+                sb.append('|').append(c);
+            }
+        }
+        sb.append("|#");
+        if (order != null) {
+            for (SortingVerse s : order) {
+                sb.append('|').append(s.getAttribute()).append(':').append(s.getVersus()).append(':').append(s.getIsCaseSensitive() ? 'S' : 'I');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendValue(StringBuilder sb, Object o) {
+        sb.append('=');
+        if (o != null) {
+            sb.append(o.getClass().getName()).append(':').append(o instanceof Date ? ((Date) o).getTime() : o);
+        }
+    }
+
+    private static QueryPlan build(Metamodel metamodel, Class entityClass, Collection<FilterCondition> filter, List<SortingVerse> order, String shape) throws InvalidParameterException {
+        String entityName = metamodel.entity(entityClass).getName();
+        int n = filter == null ? 0 : filter.size();
+        String[] operandParameters = new String[n];
+        String[] operand2Parameters = new String[n];
+        JoinTree joins = new JoinTree();
+        StringBuilder selectWhere = new StringBuilder();
+        if (filter != null) {
+            int i = 0;
+            for (FilterCondition f : filter) {
+                checkPath(metamodel, entityClass, "filter", f.getAttribute());
+                if (predicate(selectWhere, joins.path(f.getAttribute()), f, i)) {
+                    if (f.getOperator() != FilterCondition.NL && f.getOperator() != FilterCondition.NNL
+                            && f.getOperator() != FilterCondition.EMPTY && f.getOperator() != FilterCondition.NEMPTY) {
+                        operandParameters[i] = "p" + i;
+                    }
+                    if (f.getOperator() == FilterCondition.BT) {
+                        operand2Parameters[i] = "q" + i;
+                    }
+                }
+                i++;
+            }
+        }
+        String filterJoins = joins.getJoins();
+        int k = order == null ? 0 : order.size();
+        String[] keys = new String[k + 1];
+        boolean[] ascending = new boolean[k + 1];
+        Class[] keyTypes = new Class[k + 1];
+        StringBuilder orderBy = new StringBuilder();
+        boolean nullableOrder = false;
+        if (order != null) {
+            int i = 0;
+            for (SortingVerse s : order) {
+                Attribute a = checkPath(metamodel, entityClass, "order", s.getAttribute());
+                nullableOrder |= nullable(metamodel, entityClass, s.getAttribute());
+                String path = joins.path(s.getAttribute());
+                keys[i] = s.getIsCaseSensitive() ? path : "UPPER(" + path + ")";
+                ascending[i] = s.getVersus() == SortingVerse.ASC;
+                keyTypes[i] = s.getIsCaseSensitive() ? a.getJavaType() : String.class;
+                orderBy.append(orderBy.length() == 0 ? " ORDER BY " : ", ");
+                orderBy.append(keys[i]).append(ascending[i] ? " ASC" : " DESC");
+                i++;
+            }
+        }
+        QueryPlan plan = new QueryPlan(shape);
+        plan.entityName = entityName;
+        plan.operandParameters = operandParameters;
+        plan.operand2Parameters = operand2Parameters;
+        plan.joins = joins;
+        plan.selectJpql = "SELECT o FROM " + entityName + " o" + joins.getJoins() + where(selectWhere) + orderBy;
+        plan.countJpql = "SELECT COUNT(o) FROM " + entityName + " o" + filterJoins + where(selectWhere);
+        plan.filterFrom = " FROM " + entityName + " o" + filterJoins;
+        plan.filterWhere = where(selectWhere);
+        plan.selectFrom = " FROM " + entityName + " o" + joins.getJoins();
+        plan.orderBy = orderBy.toString();
+        plan.nullableOrder = nullableOrder;
+        SingularAttribute id = idAttribute(metamodel, entityClass);
+        if (id != null) {
+            plan.idAttribute = id.getName();
+            keys[k] = "o." + id.getName();
+            ascending[k] = true;
+            keyTypes[k] = id.getJavaType();
+            StringBuilder select = new StringBuilder("SELECT o");
+            StringBuilder keysetOrderBy = new StringBuilder(" ORDER BY ");
+            for (int i = 0; i <= k; i++) {
+                select.append(", ").append(keys[i]);
+                keysetOrderBy.append(i == 0 ? "" : ", ").append(keys[i]).append(ascending[i] ? " ASC" : " DESC");
+            }
+            String from = plan.selectFrom;
+            plan.keysetJpql = select + from + where(selectWhere) + keysetOrderBy;
+            StringBuilder seekWhere = new StringBuilder(selectWhere);
+            seekWhere.append(seekWhere.length() == 0 ? "" : " AND ").append(seek(keys, ascending));
+            plan.seekJpql = select + from + where(seekWhere) + keysetOrderBy;
+            plan.keyTypes = keyTypes;
+        }
+        return plan;
+    }
+
+    /**
+     * Genera la query JPQL che restituisce, per gli oggetti che soddisfano il
+     * filtro del piano, i soli attributi indicati, nell'ordine del piano. Gli
+     * attributi possono essere percorsi puntati su entità correlate, che sono
+     * raggiunte con LEFT JOIN, ma devono terminare con un attributo semplice
+     * (non un'entità o una collezione), in modo che nessun oggetto del
+     * risultato sia gestito dal contesto di persistenza.
+     *
+     * @param em
+     * @param entityClass
+     * @param plan
+     * @param attributes
+     * @param resultClass la classe da istanziare per ogni riga con
+     * SELECT NEW, oppure null per ottenere i valori
+     * @return
+     * @throws InvalidParameterException se un attributo non esiste o non è un
+     * attributo semplice
+     */
+    public static String projectionJpql(EntityManager em, Class entityClass, QueryPlan plan, List<String> attributes, Class resultClass) throws InvalidParameterException {
+        StringBuilder key = new StringBuilder(plan.getShape()).append("|P|");
+        for (String a : attributes) {
+            key.append(a).append(',');
+        }
+        if (resultClass != null) {
+            key.append(resultClass.getName());
+        }
+        String jpql = projections.get(key.toString());
+        if (jpql != null) {
+            return jpql;
+        }
+        if (attributes.isEmpty()) {
+            throw new InvalidParameterException("attributes", null, "Nessun attributo da leggere");
+        }
+        Metamodel metamodel = em.getMetamodel();
+        JoinTree joins = plan.joins.copy();
+        StringBuilder select = new StringBuilder("SELECT ");
+        if (resultClass != null) {
+            select.append("NEW ").append(resultClass.getName()).append('(');
+        }
+        for (int i = 0; i < attributes.size(); i++) {
+            String attribute = attributes.get(i);
+            Attribute a = checkPath(metamodel, entityClass, "attributes", attribute);
+            if (a.isCollection() || a.isAssociation() || ((SingularAttribute) a).getType() instanceof ManagedType) {
+                throw new InvalidParameterException("attributes", attribute, "Attributo non valido per una proiezione: " + attribute);
+            }
+            select.append(i == 0 ? "" : ", ").append(joins.path(attribute));
+        }
+        if (resultClass != null) {
+            select.append(')');
+        }
+        jpql = select + " FROM " + plan.getEntityName() + " o" + joins.getJoins() + plan.getFilterWhere() + plan.orderBy;
+        if (projections.size() >= MAX_PLANS) {
+            projections.clear();
+        }
+        projections.put(key.toString(), jpql);
+        return jpql;
+    }
+
+    /**
+     * Compila le query che caricano gli oggetti del piano insieme alle entità
+     * correlate indicate dai percorsi di fetch. Se un prefisso del percorso è
+     * già raggiunto da un join del filtro o dell'ordinamento attraverso sole
+     * associazioni singole, quel join diventa LEFT JOIN FETCH invece di
+     * aggiungerne un secondo; i join sulle collezioni non sono riusati, perché
+     * le condizioni del filtro ne limiterebbero gli elementi caricati.
+     *
+     * @param em
+     * @param entityClass
+     * @param plan
+     * @param fetch i percorsi, eventualmente puntati, delle associazioni da
+     * caricare
+     * @return
+     * @throws InvalidParameterException se un percorso non corrisponde a
+     * un'associazione
+     */
+    public static FetchPlan compileFetch(EntityManager em, Class entityClass, QueryPlan plan, List<String> fetch) throws InvalidParameterException {
+        StringBuilder key = new StringBuilder(plan.getShape()).append("|F|");
+        for (String f : fetch) {
+            key.append(f).append(',');
+        }
+        FetchPlan fp = fetchPlans.get(key.toString());
+        if (fp != null) {
+            return fp;
+        }
+        Metamodel metamodel = em.getMetamodel();
+        fp = new FetchPlan();
+        LinkedHashMap<String, String> aliases = new LinkedHashMap<String, String>();
+        StringBuilder joins = new StringBuilder();
+        // join del filtro e dell'ordinamento, riusati per i prefissi singoli
+        JoinTree tree = plan.joins.copy();
+        LinkedHashMap<String, String> extraAliases = new LinkedHashMap<String, String>();
+        StringBuilder extraJoins = new StringBuilder();
+        for (String path : fetch) {
+            String[] ss = path == null ? new String[0] : path.split("\\.");
+            String prefix = null, alias = "o", filtered = "o";
+            boolean shared = true;
+            for (String segment : ss) {
+                prefix = prefix == null ? segment : prefix + "." + segment;
+                Attribute a = checkPath(metamodel, entityClass, "fetch", prefix);
+                if (!a.isAssociation() && !a.isCollection()) {
+                    throw new InvalidParameterException("fetch", path, "Percorso di fetch non valido: " + path);
+                }
+                if (a.isCollection()) {
+                    fp.collectionFetch = true;
+                    // il join di filtro su una collezione ne limiterebbe gli elementi caricati
+                    shared = false;
+                }
+                String next = aliases.get(prefix);
+                if (next == null) {
+                    next = "f" + (aliases.size() + 1);
+                    aliases.put(prefix, next);
+                    joins.append(" LEFT JOIN FETCH ").append(alias).append('.').append(segment).append(' ').append(next);
+                }
+                alias = next;
+                String reused = shared ? tree.joined(prefix) : null;
+                if (reused != null) {
+                    tree.fetch(prefix);
+                    filtered = reused;
+                } else {
+                    next = extraAliases.get(prefix);
+                    if (next == null) {
+                        next = "f" + (extraAliases.size() + 1);
+                        extraAliases.put(prefix, next);
+                        extraJoins.append(" LEFT JOIN FETCH ").append(filtered).append('.').append(segment).append(' ').append(next);
+                    }
+                    filtered = next;
+                }
+            }
+        }
+        String root = " FROM " + plan.getEntityName() + " o";
+        fp.fetchJpql = "SELECT o" + root + tree.getJoins() + extraJoins + plan.getFilterWhere() + plan.orderBy;
+        if (plan.getIdAttribute() != null) {
+            fp.idsJpql = "SELECT o." + plan.getIdAttribute() + plan.selectFrom + plan.getFilterWhere() + plan.orderBy;
+            fp.fetchByIdsJpql = "SELECT o" + root + joins + " WHERE o." + plan.getIdAttribute() + " IN :ids";
+        }
+        if (fetchPlans.size() >= MAX_PLANS) {
+            fetchPlans.clear();
+        }
+        fetchPlans.put(key.toString(), fp);
+        return fp;
+    }
+
+    /**
+     * Genera l'istruzione JPQL di aggiornamento massivo degli oggetti che
+     * soddisfano il filtro del piano. Il parametro :a&lt;i&gt; corrisponde
+     * all'i-esimo attributo. Se il filtro richiede dei join, le righe da
+     * aggiornare sono individuate attraverso una sottoquery sull'id. Se
+     * l'entità ha un attributo version numerico, questo viene incrementato.
+     *
+     * @param em
+     * @param entityClass
+     * @param plan il piano del filtro, compilato senza ordinamento
+     * @param attributes gli attributi da modificare
+     * @return
+     * @throws InvalidParameterException se un attributo non esiste o non è un
+     * attributo singolo dell'entità
+     */
+    public static String updateJpql(EntityManager em, Class entityClass, QueryPlan plan, List<String> attributes) throws InvalidParameterException {
+        Metamodel metamodel = em.getMetamodel();
+        if (plan.hasFilterJoins() && plan.getIdAttribute() == null) {
+            throw new InvalidParameterException("filter", null, "Filtro su entità correlate non supportato per " + entityClass.getName());
+        }
+        String alias = plan.hasFilterJoins() ? "u" : "o";
+        StringBuilder sb = new StringBuilder("UPDATE ").append(plan.getEntityName()).append(' ').append(alias).append(" SET ");
+        for (int i = 0; i < attributes.size(); i++) {
+            String attribute = attributes.get(i);
+            if (attribute == null || attribute.contains(".") || !(checkPath(metamodel, entityClass, "assignments", attribute) instanceof SingularAttribute)) {
+                throw new InvalidParameterException("assignments", attribute, "Attributo non valido: " + attribute);
+            }
+            sb.append(i == 0 ? "" : ", ").append(alias).append('.').append(attribute).append(" = :a").append(i);
+        }
+        for (Object o : metamodel.entity(entityClass).getSingularAttributes()) {
+            SingularAttribute a = (SingularAttribute) o;
+            Class c = a.getJavaType();
+            if (a.isVersion() && (c == Integer.class || c == int.class || c == Long.class || c == long.class || c == Short.class || c == short.class)) {
+                sb.append(", ").append(alias).append('.').append(a.getName()).append(" = ").append(alias).append('.').append(a.getName()).append(" + 1");
+            }
+        }
+        if (plan.hasFilterJoins()) {
+            sb.append(" WHERE u.").append(plan.getIdAttribute()).append(" IN (SELECT o.").append(plan.getIdAttribute())
+                    .append(plan.getFilterFrom()).append(plan.getFilterWhere()).append(')');
+        } else {
+            sb.append(plan.getFilterWhere());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Condizione di posizionamento dopo l'ultima riga letta: per chiavi
+     * k0..kn restituisce (k0 &gt; :k0) OR (k0 = :k0 AND k1 &gt; :k1) OR ...,
+     * con il confronto invertito per le chiavi in ordine decrescente.
+     */
+    private static String seek(String[] keys, boolean[] ascending) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < keys.length; i++) {
+            sb.append(i == 0 ? "(" : " OR (");
+            for (int j = 0; j < i; j++) {
+                sb.append(keys[j]).append(" = :k").append(j).append(" AND ");
+            }
+            sb.append(keys[i]).append(ascending[i] ? " > :k" : " < :k").append(i).append(')');
+        }
+        return sb.append(')').toString();
+    }
+
+    private static SingularAttribute idAttribute(Metamodel metamodel, Class entityClass) {
+        EntityType type = metamodel.entity(entityClass);
+        try {
+            if (!type.hasSingleIdAttribute()) {
+                return null;
+            }
+            return type.getId(type.getIdType().getJavaType());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String where(StringBuilder conditions) {
+        return conditions.length() == 0 ? "" : " WHERE " + conditions;
+    }
+
+    private static boolean predicate(StringBuilder where, String path, FilterCondition f, int i) {
+        String p = ":p" + i, q = ":q" + i;
+        String expression;
+        if (!f.getIsCaseSensitive()) {
+            path = "UPPER(" + path + ")";
+            p = "UPPER(" + p + ")";
+            q = "UPPER(" + q + ")";
+        }
+        switch (f.getOperator()) {
+            case FilterCondition.EQ:
+                expression = path + " = " + p;
+                break;
+            case FilterCondition.NEQ:
+                expression = path + " <> " + p;
+                break;
+            case FilterCondition.GE:
+                expression = path + " >= " + p;
+                break;
+            case FilterCondition.GT:
+                expression = path + " > " + p;
+                break;
+            case FilterCondition.LE:
+                expression = path + " <= " + p;
+                break;
+            case FilterCondition.LT:
+                expression = path + " < " + p;
+                break;
+            case FilterCondition.LK:
+                expression = path + " LIKE " + p;
+                break;
+            case FilterCondition.BT:
+                expression = path + " BETWEEN " + p + " AND " + q;
+                break;
+            case FilterCondition.NL:
+                expression = path + " IS NULL";
+                break;
+            case FilterCondition.NNL:
+                expression = path + " IS NOT NULL";
+                break;
+            case FilterCondition.EMPTY:
+                expression = path + " IS EMPTY";
+                break;
+            case FilterCondition.NEMPTY:
+                expression = path + " IS NOT EMPTY";
+                break;
+            default:
+                return false;
+        }
+        if (where.length() > 0) {
+            where.append(" AND ");
+        }
+        where.append(expression);
+        return true;
+    }
+
+    /**
+     * Indica se il percorso, già verificato con checkPath, può valere null:
+     * se uno dei suoi attributi è facoltativo (e non di tipo primitivo) o è
+     * una collezione, raggiunta con un LEFT JOIN.
+     *
+     * @param metamodel
+     * @param entityClass
+     * @param attribute
+     * @return
+     */
+    static boolean nullable(Metamodel metamodel, Class entityClass, String attribute) {
+        ManagedType type = metamodel.managedType(entityClass);
+        for (String name : attribute.split("\\.")) {
+            Attribute a = type.getAttribute(name);
+            if (a instanceof PluralAttribute) {
+                return true;
+            }
+            SingularAttribute sa = (SingularAttribute) a;
+            if (sa.isOptional() && !sa.isId() && !sa.getJavaType().isPrimitive()) {
+                return true;
+            }
+            if (!(sa.getType() instanceof ManagedType)) {
+                break;
+            }
+            type = (ManagedType) sa.getType();
+        }
+        return false;
+    }
+
+    /**
+     * Verifica che il percorso (eventualmente puntato) corrisponda ad
+     * attributi esistenti nel metamodello. Il controllo impedisce anche che
+     * nomi arbitrari finiscano nella query JPQL generata.
+     */
+    static Attribute checkPath(Metamodel metamodel, Class entityClass, String parameter, String attribute) throws InvalidParameterException {
+        if (attribute == null) {
+            throw new InvalidParameterException(parameter, null, "Attributo non specificato");
+        }
+        ManagedType type = metamodel.managedType(entityClass);
+        String[] ss = attribute.split("\\.");
+        Attribute a = null;
+        for (int i = 0; i < ss.length; i++) {
+            if (type == null) {
+                throw new InvalidParameterException(parameter, attribute, "Attributo non valido: " + attribute);
+            }
+            try {
+                a = type.getAttribute(ss[i]);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidParameterException(parameter, attribute, "Attributo non valido: " + attribute);
+            }
+            Type next = a instanceof PluralAttribute ? ((PluralAttribute) a).getElementType() : ((SingularAttribute) a).getType();
+            type = next instanceof ManagedType ? (ManagedType) next : null;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Log delle letture lente (list, count). Ogni lettura che supera la soglia
+ * viene scritta sul logger log4j di questa classe, a livello WARN, con
+ * entità, forma normalizzata di filtro e ordinamento (es., "cliente.nome LIKE
+ * ? AND data BETWEEN ? AND ? ORDER BY data DESC"), eventualmente con i valori
+ * degli operandi, start/limit, numero di righe, tempo e JPQL eseguita. Per
+ * ogni forma vengono inoltre mantenuti in memoria numero di esecuzioni lente,
+ * tempo totale e massimo, in modo da individuare le query da ottimizzare (es.,
+ * con nuovi indici).
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class SlowQueryLog {
+
+    private static final Logger log = Logger.getLogger(SlowQueryLog.class);
+    private static final int MAX_SHAPES = 1000;
+    private static final ConcurrentHashMap<String, ShapeStats> shapes = new ConcurrentHashMap<String, ShapeStats>();
+
+    private static volatile boolean enabled;
+    private static volatile long thresholdNanos;
+    private static volatile boolean redact = true;
+
+    private SlowQueryLog() {
+    }
+
+    /**
+     * @param thresholdMillis la durata oltre la quale una lettura è lenta
+     * @param redact se true, i valori degli operandi non vengono scritti nel
+     * log
+     */
+    public static void enable(long thresholdMillis, boolean redact) {
+        SlowQueryLog.thresholdNanos = thresholdMillis * 1000000L;
+        SlowQueryLog.redact = redact;
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return l'istante di inizio in nanosecondi, oppure 0 se il log è
+     * disabilitato
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Registra la lettura iniziata all'istante start, se ha superato la
+     * soglia.
+     *
+     * @param entityClass
+     * @param operation
+     * @param filter
+     * @param order
+     * @param start
+     * @param limit
+     * @param rows il numero di righe restituite
+     * @param jpql la query eseguita
+     * @param startNanos il valore restituito da start()
+     */
+    public static void record(Class entityClass, String operation, Collection<FilterCondition> filter, List<SortingVerse> order,
+            Integer start, Integer limit, long rows, String jpql, long startNanos) {
+        if (startNanos == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        if (elapsed < thresholdNanos) {
+            return;
+        }
+        String shape = shape(filter, order, true);
+        String key = entityClass.getName() + " " + operation + " " + shape;
+        ShapeStats s = shapes.get(key);
+        if (s == null && shapes.size() < MAX_SHAPES) {
+            s = new ShapeStats(entityClass.getName(), operation, shape);
+            ShapeStats prev = shapes.putIfAbsent(key, s);
+            if (prev != null) {
+                s = prev;
+            }
+        }
+        if (s != null) {
+            s.add(elapsed, jpql);
+        }
+        if (log.isEnabledFor(Level.WARN)) {
+            log.warn("Slow " + operation + " on " + entityClass.getName() + " (" + elapsed / 1000000 + " ms, " + rows + " rows"
+                    + ", start=" + start + ", limit=" + limit + "): "
+                    + (redact ? shape : shape(filter, order, false)) + " | " + jpql);
+        }
+    }
+
+    /**
+     * @param n
+     * @return le n forme con il tempo totale più alto tra le letture lente
+     */
+    public static List<ShapeStats> getTopShapes(int n) {
+        ArrayList<ShapeStats> res = new ArrayList<ShapeStats>(shapes.values());
+        Collections.sort(res, new Comparator<ShapeStats>() {
+            @Override
+            public int compare(ShapeStats a, ShapeStats b) {
+                long x = a.getTotalNanos(), y = b.getTotalNanos();
+                return x > y ? -1 : x < y ? 1 : 0;
+            }
+        });
+        return n < res.size() ? new ArrayList<ShapeStats>(res.subList(0, n)) : res;
+    }
+
+    public static void reset() {
+        shapes.clear();
+    }
+
+    /**
+     * Forma normalizzata di filtro e ordinamento.
+     *
+     * @param filter
+     * @param order
+     * @param redact se true, gli operandi sono sostituiti da ?
+     * @return
+     */
+    public static String shape(Collection<FilterCondition> filter, List<SortingVerse> order, boolean redact) {
+        StringBuilder sb = new StringBuilder();
+        if (filter != null) {
+            for (FilterCondition f : filter) {
+                sb.append(sb.length() == 0 ? "" : " AND ");
+                String path = f.getIsCaseSensitive() ? f.getAttribute() : "UPPER(" + f.getAttribute() + ")";
+                String p = redact ? "?" : String.valueOf(f.getOperand());
+                switch (f.getOperator()) {
+                    case FilterCondition.EQ:
+                        sb.append(path).append(" = ").append(p);
+                        break;
+                    case FilterCondition.NEQ:
+                        sb.append(path).append(" <> ").append(p);
+                        break;
+                    case FilterCondition.GE:
+                        sb.append(path).append(" >= ").append(p);
+                        break;
+                    case FilterCondition.GT:
+                        sb.append(path).append(" > ").append(p);
+                        break;
+                    case FilterCondition.LE:
+                        sb.append(path).append(" <= ").append(p);
+                        break;
+                    case FilterCondition.LT:
+                        sb.append(path).append(" < ").append(p);
+                        break;
+                    case FilterCondition.LK:
+                        sb.append(path).append(" LIKE ").append(p);
+                        break;
+                    case FilterCondition.BT:
+                        sb.append(path).append(" BETWEEN ").append(p).append(" AND ").append(redact ? "?" : String.valueOf(f.getOperand2()));
+                        break;
+                    case FilterCondition.NL:
+                        sb.append(path).append(" IS NULL");
+                        break;
+                    case FilterCondition.NNL:
+                        sb.append(path).append(" IS NOT NULL");
+                        break;
+                    case FilterCondition.EMPTY:
+                        sb.append(path).append(" IS EMPTY");
+                        break;
+                    case FilterCondition.NEMPTY:
+                        sb.append(path).append(" IS NOT EMPTY");
+                        break;
+                    default:
+                        sb.append(path).append(" ?").append(f.getOperator());
+                }
+            }
+        }
+        if (order != null && !order.isEmpty()) {
+            sb.append(sb.length() == 0 ? "ORDER BY " : " ORDER BY ");
+            for (int i = 0; i < order.size(); i++) {
+                SortingVerse s = order.get(i);
+                sb.append(i == 0 ? "" : ", ").append(s.getIsCaseSensitive() ? s.getAttribute() : "UPPER(" + s.getAttribute() + ")")
+                        .append(s.getVersus() == SortingVerse.DESC ? " DESC" : " ASC");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Statistiche delle letture lente con la stessa forma.
+     */
+    public static class ShapeStats {
+
+        final String entity, operation, shape;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        volatile String jpql;
+
+        ShapeStats(String entity, String operation, String shape) {
+            this.entity = entity;
+            this.operation = operation;
+            this.shape = shape;
+        }
+
+        void add(long nanos, String jpql) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            this.jpql = jpql;
+        }
+
+        public String getEntity() {
+            return entity;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public String getJpql() {
+            return jpql;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return entity + " " + operation + " [" + shape + "] count=" + getCount() + " total=" + getTotalNanos() / 1000000
+                    + "ms max=" + getMaxNanos() / 1000000 + "ms";
+        }
+    }
+}
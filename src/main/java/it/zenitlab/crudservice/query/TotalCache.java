@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice.query;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totali dei conteggi per classe di entità e chiave canonica del filtro, con
+ * scadenza. Usata da CRUDService.listPage() per non ripetere il conteggio di
+ * filtri richiesti di frequente. Come in QueryCache, un totale viene
+ * memorizzato solo se la classe non è stata invalidata dopo la lettura della
+ * generazione che precede il conteggio, in modo che un conteggio concorrente
+ * a una scrittura non rimanga in cache dopo l'invalidazione.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class TotalCache {
+
+    private static final int MAX_ENTRIES = 4096;
+    private static final ConcurrentHashMap<Class, ConcurrentHashMap<String, long[]>> totals = new ConcurrentHashMap<Class, ConcurrentHashMap<String, long[]>>();
+    private static final ConcurrentHashMap<Class, AtomicLong> generations = new ConcurrentHashMap<Class, AtomicLong>();
+
+    private TotalCache() {
+    }
+
+    public static Long get(Class entityClass, String key) {
+        ConcurrentHashMap<String, long[]> m = totals.get(entityClass);
+        if (m == null) {
+            return null;
+        }
+        long[] e = m.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e[1] < System.currentTimeMillis()) {
+            m.remove(key, e);
+            return null;
+        }
+        return e[0];
+    }
+
+    /**
+     * @param entityClass
+     * @return la generazione corrente dei totali della classe, da leggere
+     * prima di eseguire il conteggio il cui risultato sarà passato a put()
+     */
+    public static long generation(Class entityClass) {
+        return generationOf(entityClass).get();
+    }
+
+    /**
+     * Memorizza un totale, a meno che i totali della classe non siano stati
+     * invalidati dopo la lettura della generazione indicata.
+     *
+     * @param entityClass
+     * @param generation la generazione letta prima di eseguire il conteggio
+     * @param key
+     * @param total
+     * @param ttl
+     */
+    public static void put(Class entityClass, long generation, String key, long total, long ttl) {
+        AtomicLong g = generationOf(entityClass);
+        synchronized (g) {
+            if (g.get() == generation) {
+                put(entityClass, key, total, ttl);
+            }
+        }
+    }
+
+    private static void put(Class entityClass, String key, long total, long ttl) {
+        ConcurrentHashMap<String, long[]> m = totals.get(entityClass);
+        if (m == null) {
+            m = new ConcurrentHashMap<String, long[]>();
+            ConcurrentHashMap<String, long[]> prev = totals.putIfAbsent(entityClass, m);
+            if (prev != null) {
+                m = prev;
+            }
+        }
+        if (m.size() >= MAX_ENTRIES) {
+            m.clear();
+        }
+        m.put(key, new long[]{total, System.currentTimeMillis() + ttl});
+    }
+
+    public static void invalidate(Class entityClass) {
+        AtomicLong g = generationOf(entityClass);
+        synchronized (g) {
+            g.incrementAndGet();
+            ConcurrentHashMap<String, long[]> m = totals.get(entityClass);
+            if (m != null) {
+                m.clear();
+            }
+        }
+    }
+
+    private static AtomicLong generationOf(Class entityClass) {
+        AtomicLong g = generations.get(entityClass);
+        if (g == null) {
+            g = new AtomicLong();
+            AtomicLong prev = generations.putIfAbsent(entityClass, g);
+            if (prev != null) {
+                g = prev;
+            }
+        }
+        return g;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.crudservice.model.Categoria;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che i posti delle operazioni asincrone vengano liberati una sola
+ * volta, e solo quando l'operazione non occupa più un thread.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class AsyncCRUDServiceTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    private static AsyncCRUDService<TestService> async(ExecutorService executor, int maxConcurrent) {
+        return new AsyncCRUDService<TestService>(emf, new AsyncCRUDService.ServiceFactory<TestService>() {
+            @Override
+            public TestService create(EntityManager em) {
+                return new TestService(em, Categoria.class);
+            }
+        }, executor, maxConcurrent);
+    }
+
+    @Test
+    public void completedOperationsReleaseTheirPermit() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        AsyncCRUDService<TestService> async = async(executor, 2);
+        Future<Categoria> c = async.create(new Categoria("Asincrona"), new HashMap<String, Object>());
+        assertTrue(async.count(null).get() > 0);
+        assertNotNull(async.read(c.get().getId()).get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, async.permits.availablePermits());
+    }
+
+    @Test
+    public void cancelledOperationsReleaseTheirPermitOnce() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncCRUDService<TestService> async = async(executor, 3);
+        final CountDownLatch running = new CountDownLatch(1), proceed = new CountDownLatch(1);
+        Future<Object> first = async.submit(new AsyncCRUDService.Operation<TestService, Object>() {
+            @Override
+            public Object execute(TestService service) throws ServiceException {
+                running.countDown();
+                while (true) {
+                    try {
+                        proceed.await();
+                        return null;
+                    } catch (InterruptedException e) {
+                        // l'operazione prosegue fino al via libera
+                    }
+                }
+            }
+        });
+        Future<Long> queued = async.count(null);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        assertEquals(1, async.permits.availablePermits());
+        assertTrue(queued.cancel(true));
+        assertEquals(2, async.permits.availablePermits());
+        assertTrue(first.cancel(true));
+        assertEquals(2, async.permits.availablePermits());
+        proceed.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(3, async.permits.availablePermits());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.crudservice.query.ChunkIterator;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la lettura a blocchi con attributi di ordinamento nulli.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ChunkIteratorTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Test
+    public void rowsWithNullSortKeysAreNotSkipped() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        HashSet<Integer> created = new HashSet<Integer>();
+        for (String nome : Arrays.asList("b", null, "a", null, "c", null, "d")) {
+            created.add(s.<Prodotto>create(new Prodotto(nome, 777, null)).getId());
+        }
+        List<FilterCondition> filter = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, 777.0, true));
+        List<SortingVerse> order = Arrays.asList(new SortingVerse("nome", SortingVerse.ASC, true));
+        HashSet<Integer> read = new HashSet<Integer>();
+        ChunkIterator<Prodotto> it = s.iterate(filter, order, 2);
+        while (it.hasNext()) {
+            assertTrue(read.add(it.next().getId()));
+        }
+        assertEquals(created, read);
+        s.close();
+    }
+}
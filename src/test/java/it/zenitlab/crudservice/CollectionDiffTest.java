@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Categoria;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica il confronto per id di collezioni di entità e di oggetti non
+ * gestiti dal metamodello.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class CollectionDiffTest {
+
+    private static TestService service;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        service = new TestService(EM.getFactory("crudservice-test").createEntityManager(), Categoria.class);
+    }
+
+    public static class Voce {
+
+        private final Integer id;
+
+        public Voce(Integer id) {
+            this.id = id;
+        }
+
+        public Integer getId() {
+            return id;
+        }
+    }
+
+    @Test
+    public void entitiesAreMatchedById() {
+        Categoria a = new Categoria("A");
+        a.setId(1);
+        Categoria b = new Categoria("B");
+        b.setId(2);
+        Categoria a2 = new Categoria("A2");
+        a2.setId(1);
+        Categoria c = new Categoria("C");
+        CollectionDiff<Categoria> d = service.diff(Arrays.asList(a, b), Arrays.asList(a2, c));
+        assertEquals(1, d.getRetained().size());
+        assertEquals(Arrays.asList(c), d.getAdded());
+        assertEquals(Arrays.asList(b), d.getRemoved());
+    }
+
+    @Test
+    public void nonEntitiesUseGetId() throws Exception {
+        Voce v1 = new Voce(1);
+        Voce v2 = new Voce(2);
+        Voce nuova = new Voce(null);
+        HashSet<Voce> incoming = new HashSet<Voce>(Arrays.asList(new Voce(1), nuova));
+        assertEquals(new HashSet<Voce>(Arrays.asList(nuova)), service.newObjects(incoming));
+        assertEquals(1, service.oldObjects(incoming).size());
+        CollectionDiff<Voce> d = service.diff(Arrays.asList(v1, v2), incoming);
+        assertEquals(Arrays.asList(v2), d.getRemoved());
+        assertEquals(Arrays.asList(nuova), d.getAdded());
+    }
+}
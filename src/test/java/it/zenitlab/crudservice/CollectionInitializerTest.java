@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Categoria;
+import java.util.AbstractList;
+import java.util.AbstractSequentialList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica l'inizializzazione delle collezioni nulle di initNullCollections().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class CollectionInitializerTest {
+
+    private static TestService service;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        service = new TestService(EM.getFactory("crudservice-test").createEntityManager(), Categoria.class);
+    }
+
+    public static class Base {
+
+        private List<String> ereditata;
+    }
+
+    public static class Ordine extends Base {
+
+        private Set<String> insieme;
+        private SortedSet<String> ordinato;
+        private Map<String, String> mappa;
+        private LinkedList<String> concreta;
+        private AbstractList<String> astratta;
+        private AbstractSequentialList<String> sequenziale;
+        private EnumMap<TimeUnit, String> perUnita;
+        private List<String> presente = Collections.singletonList("x");
+        private String nome;
+    }
+
+    @Test
+    public void nullCollectionsAreInitialized() throws Exception {
+        Ordine o = new Ordine();
+        service.initNullCollections(o);
+        assertEquals(ArrayList.class, ((Base) o).ereditata.getClass());
+        assertEquals(HashSet.class, o.insieme.getClass());
+        assertEquals(TreeSet.class, o.ordinato.getClass());
+        assertEquals(HashMap.class, o.mappa.getClass());
+        assertEquals(LinkedList.class, o.concreta.getClass());
+        assertEquals(ArrayList.class, o.astratta.getClass());
+        assertEquals(Collections.singletonList("x"), o.presente);
+        assertNull(o.nome);
+    }
+
+    @Test
+    public void fieldsWithoutAUsableImplementationAreSkipped() throws Exception {
+        Ordine o = new Ordine();
+        service.initNullCollections(o);
+        assertNull(o.perUnita);
+        assertNull(o.sequenziale);
+        o.insieme = null;
+        service.initNullCollections(o);
+        assertNotNull(o.insieme);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidClassException;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica il salvataggio a blocchi di createAll().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class CreateAllTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    private static List<FilterCondition> prezzo(double prezzo) {
+        return Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, prezzo, true));
+    }
+
+    @Test
+    public void invalidObjectsAreReportedWithoutStoppingTheOthers() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Object> objects = new ArrayList<Object>();
+        objects.add(new Prodotto("Primo", 81.5, null));
+        objects.add(new Categoria("Fuori posto"));
+        objects.add(new Prodotto("Secondo", 81.5, null));
+        BatchResult<Object> res = s.createAll(objects, new HashMap<String, Object>(), 2);
+        assertEquals(2, res.getProcessed().size());
+        assertEquals(1, res.getFailures().size());
+        assertTrue(res.getFailures().get(1) instanceof InvalidClassException);
+        assertEquals(2, s.count(prezzo(81.5)));
+        s.close();
+    }
+
+    @Test
+    public void joinedTransactionKeepsTheCallerObjectsManaged() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService sc = new TestService(em, Categoria.class);
+        TestService s = new TestService(em, Prodotto.class);
+        em.getTransaction().begin();
+        Categoria c = sc.create(new Categoria("Gestita"));
+        List<Prodotto> objects = new ArrayList<Prodotto>();
+        for (int i = 0; i < 5; i++) {
+            objects.add(new Prodotto("Blocco " + i, 82.5, c));
+        }
+        BatchResult<Prodotto> res = s.createAll(objects, new HashMap<String, Object>(), 2);
+        assertTrue(em.getTransaction().isActive());
+        assertTrue(em.contains(c));
+        for (Prodotto p : res.getProcessed()) {
+            assertTrue(em.contains(p));
+        }
+        c.setNome("Modificata nella transazione");
+        em.getTransaction().commit();
+        TestService check = new TestService(emf.createEntityManager(), Categoria.class);
+        assertEquals("Modificata nella transazione", ((Categoria) check.read(c.getId())).getNome());
+        check.close();
+        assertEquals(5, s.count(prezzo(82.5)));
+        s.close();
+        sc.close();
+    }
+
+    @Test
+    public void ownTransactionClearsThePersistenceContext() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        List<Prodotto> objects = new ArrayList<Prodotto>();
+        for (int i = 0; i < 4; i++) {
+            objects.add(new Prodotto("Svuotato " + i, 83.5, null));
+        }
+        BatchResult<Prodotto> res = s.createAll(objects, new HashMap<String, Object>(), 2);
+        assertEquals(4, res.getProcessed().size());
+        assertFalse(em.contains(res.getProcessed().get(0)));
+        assertEquals(4, s.count(prezzo(83.5)));
+        s.close();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.DependingObjectsException;
+import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che deleteAll e deleteWhere non scartino le modifiche in sospeso
+ * del chiamante e che blocchino l'eliminazione degli oggetti con dipendenti.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class DeleteAllTest {
+
+    private static EntityManagerFactory emf;
+    private static Statistics statistics;
+
+    /**
+     * Una categoria non è eliminabile se ha prodotti: i dipendenti dell'intero
+     * insieme vengono cercati con una query per blocco di id.
+     */
+    static class CategoriaService extends TestService {
+
+        CategoriaService(EntityManager em) {
+            super(em, Categoria.class);
+        }
+
+        @Override
+        public void checkRemovable(Object o, HashMap<String, Object> params) throws ServiceException {
+            Query q = em.createQuery("SELECT COUNT(p) FROM Prodotto p WHERE p.categoria.id = :id");
+            q.setParameter("id", ((Categoria) o).getId());
+            if ((Long) q.getSingleResult() > 0) {
+                throw new DependingObjectsException("Categoria con prodotti", Prodotto.class, ((Categoria) o).getId());
+            }
+        }
+
+        @Override
+        protected ArrayList<Object> findNonRemovable(List<Integer> ids, HashMap<String, Object> params) throws ServiceException {
+            ArrayList<Object> res = new ArrayList<Object>();
+            for (int i = 0; i < ids.size(); i += inChunkSize) {
+                Query q = em.createQuery("SELECT DISTINCT p.categoria.id FROM Prodotto p WHERE p.categoria.id IN :ids");
+                q.setParameter("ids", ids.subList(i, Math.min(i + inChunkSize, ids.size())));
+                res.addAll(q.getResultList());
+            }
+            return res;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        statistics = ((SessionFactory) emf).getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    @Test
+    public void pendingChangesInTheCallerTransactionAreKept() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Categoria.class);
+        Categoria a = s.create(new Categoria("Da modificare"));
+        Categoria b = s.create(new Categoria("Da eliminare"));
+        em.getTransaction().begin();
+        a.setNome("Modificata");
+        assertEquals(1, s.deleteAll(Arrays.asList(b.getId())));
+        assertTrue(em.contains(a));
+        em.getTransaction().commit();
+        s.close();
+        EntityManager check = emf.createEntityManager();
+        assertEquals("Modificata", check.find(Categoria.class, a.getId()).getNome());
+        assertNull(check.find(Categoria.class, b.getId()));
+        check.close();
+    }
+
+    @Test
+    public void ownTransactionClearsTheContext() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Categoria.class);
+        Categoria a = s.create(new Categoria("Da eliminare"));
+        assertEquals(1, s.deleteAll(Arrays.asList(a.getId())));
+        assertFalse(em.contains(a));
+        assertNull(s.read(a.getId()));
+        s.close();
+    }
+
+    @Test
+    public void objectsWithDependentsBlockTheWholeDelete() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        CategoriaService s = new CategoriaService(em);
+        s.inChunkSize = 2;
+        Categoria libera = s.create(new Categoria("Libera"));
+        Categoria usata = s.create(new Categoria("Usata"));
+        Categoria vuota = s.create(new Categoria("Vuota"));
+        TestService sp = new TestService(em, Prodotto.class);
+        sp.create(new Prodotto("Dipendente", 111.5, usata));
+        long queries = statistics.getQueryExecutionCount();
+        long loads = statistics.getEntityLoadCount();
+        try {
+            s.deleteAll(Arrays.asList(libera.getId(), usata.getId(), vuota.getId()));
+            fail();
+        } catch (DependingObjectsException e) {
+            assertEquals(Arrays.<Object>asList(usata.getId()), e.getIdOfDependingObjects());
+        }
+        // una query per blocco di inChunkSize id, senza caricare le categorie
+        assertEquals(queries + 2, statistics.getQueryExecutionCount());
+        assertEquals(loads, statistics.getEntityLoadCount());
+        assertNotNull(s.read(libera.getId()));
+        assertNotNull(s.read(vuota.getId()));
+        assertEquals(2, s.deleteAll(Arrays.asList(libera.getId(), vuota.getId())));
+        assertNull(s.read(libera.getId()));
+        s.close();
+    }
+
+    @Test
+    public void deleteWhereRemovesTheMatchingObjects() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        CategoriaService s = new CategoriaService(em);
+        Categoria a = s.create(new Categoria("Filtrata"));
+        Categoria b = s.create(new Categoria("Filtrata"));
+        Categoria usata = s.create(new Categoria("Filtrata con prodotti"));
+        new TestService(em, Prodotto.class).create(new Prodotto("Dipendente filtrato", 112.5, usata));
+        List<FilterCondition> filter = Arrays.asList(new FilterCondition("nome", FilterCondition.LK, "Filtrata%", true));
+        try {
+            s.deleteWhere(filter);
+            fail();
+        } catch (DependingObjectsException e) {
+            assertEquals(Arrays.<Object>asList(usata.getId()), e.getIdOfDependingObjects());
+        }
+        assertNotNull(s.read(a.getId()));
+        em.getTransaction().begin();
+        em.find(Categoria.class, a.getId()).setNome("Filtrata e modificata");
+        assertEquals(1, s.deleteWhere(Arrays.asList(new FilterCondition("nome", FilterCondition.EQ, "Filtrata", true))));
+        em.getTransaction().commit();
+        s.close();
+        EntityManager check = emf.createEntityManager();
+        assertEquals("Filtrata e modificata", check.find(Categoria.class, a.getId()).getNome());
+        assertNull(check.find(Categoria.class, b.getId()));
+        check.close();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Fornitore;
+import it.zenitlab.crudservice.model.Indirizzo;
+import it.zenitlab.crudservice.model.Prodotto;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la copia degli attributi modificati, anche su oggetti restituiti
+ * come proxy lazy.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class EntityBinderTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Test
+    public void updateOfAProxyIsNotLost() throws Exception {
+        TestService s1 = new TestService(emf.createEntityManager(), Categoria.class);
+        int id = s1.create(new Categoria("Musica")).getId();
+        s1.close();
+        EntityManager em = emf.createEntityManager();
+        Object reference = em.getReference(Categoria.class, id);
+        assertNotSame(Categoria.class, reference.getClass());
+        TestService s2 = new TestService(em, Categoria.class);
+        Categoria c = new Categoria("Dischi");
+        c.setId(id);
+        Categoria updated = s2.update(c);
+        assertSame(reference, updated);
+        assertEquals("Dischi", updated.getNome());
+        s2.close();
+        EntityManager check = emf.createEntityManager();
+        assertEquals("Dischi", check.find(Categoria.class, id).getNome());
+        check.close();
+    }
+
+    private static Prodotto copy(Prodotto p, Categoria categoria) {
+        Prodotto c = new Prodotto(p.getNome(), p.getPrezzo(), categoria);
+        c.setId(p.getId());
+        c.setCreato(new Date(p.getCreato().getTime()));
+        return c;
+    }
+
+    @Test
+    public void onlyChangedAttributesAreBound() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        Categoria categoria = new TestService(em, Categoria.class).create(new Categoria("Binder"));
+        Prodotto p = s.create(new Prodotto("Invariato", 121.5, categoria));
+        Categoria stessa = new Categoria("Altro nome");
+        stessa.setId(categoria.getId());
+        Prodotto source = copy(p, stessa);
+        EntityBinder binder = EntityBinder.of(em, Prodotto.class);
+        assertTrue(binder.bind(em, p, source, null, null).isEmpty());
+        source.setPrezzo(122.5);
+        assertEquals(Arrays.asList("prezzo"), binder.bind(em, p, source, null, null));
+        assertEquals(122.5, p.getPrezzo(), 0);
+        assertSame(categoria, p.getCategoria());
+        s.close();
+    }
+
+    @Test
+    public void associationsAreBoundByReference() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        TestService sc = new TestService(em, Categoria.class);
+        Categoria prima = sc.create(new Categoria("Prima"));
+        int seconda = ((Categoria) sc.create(new Categoria("Seconda"))).getId();
+        Prodotto p = s.create(new Prodotto("Associato", 123.5, prima));
+        em.clear();
+        Prodotto managed = em.find(Prodotto.class, p.getId());
+        Categoria detached = new Categoria("Nome ignorato");
+        detached.setId(seconda);
+        List<String> changed = EntityBinder.of(em, Prodotto.class).bind(em, managed, copy(managed, detached), null, null);
+        assertEquals(Arrays.asList("categoria"), changed);
+        assertNotSame(detached, managed.getCategoria());
+        assertSame(em.getReference(Categoria.class, seconda), managed.getCategoria());
+        assertEquals("Seconda", managed.getCategoria().getNome());
+        s.close();
+    }
+
+    @Test
+    public void includeAndExcludeLimitTheBoundAttributes() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s.create(new Prodotto("Limitato", 124.5, null));
+        s.close();
+        Prodotto source = copy(p, null);
+        source.setNome("Incluso");
+        source.setPrezzo(125.5);
+        HashMap<String, Object> params = new HashMap<String, Object>();
+        params.put(CRUDService.BIND_INCLUDE, Collections.singleton("nome"));
+        s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.update(source, params);
+        s.close();
+        EntityManager check = emf.createEntityManager();
+        Prodotto q = check.find(Prodotto.class, p.getId());
+        assertEquals("Incluso", q.getNome());
+        assertEquals(124.5, q.getPrezzo(), 0);
+        check.close();
+        source.setNome("Escluso");
+        params = new HashMap<String, Object>();
+        params.put(CRUDService.BIND_EXCLUDE, Collections.singleton("nome"));
+        s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.update(source, params);
+        s.close();
+        check = emf.createEntityManager();
+        q = check.find(Prodotto.class, p.getId());
+        assertEquals("Incluso", q.getNome());
+        assertEquals(125.5, q.getPrezzo(), 0);
+        check.close();
+    }
+
+    @Test
+    public void embeddedObjectsAreCopiedNotShared() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Fornitore.class);
+        Fornitore f = s.create(new Fornitore("Fornitore", null));
+        s.close();
+        Indirizzo sede = new Indirizzo("Via Roma 1", "Cosenza");
+        Fornitore source = new Fornitore("Fornitore", sede);
+        source.setId(f.getId());
+        s = new TestService(emf.createEntityManager(), Fornitore.class);
+        Fornitore updated = s.update(source);
+        assertNotSame(sede, updated.getSede());
+        assertEquals("Cosenza", updated.getSede().getCitta());
+        sede.setCitta("Rende");
+        assertEquals("Cosenza", updated.getSede().getCitta());
+        Indirizzo before = updated.getSede();
+        source.setSede(new Indirizzo("Via Roma 1", "Rende"));
+        assertEquals(Arrays.asList("sede"), EntityBinder.of(s.em, Fornitore.class).bind(s.em, updated, source, null, null));
+        assertSame(before, updated.getSede());
+        s.em.getTransaction().begin();
+        s.em.getTransaction().commit();
+        s.close();
+        EntityManager check = emf.createEntityManager();
+        Indirizzo saved = check.find(Fornitore.class, f.getId()).getSede();
+        assertEquals("Via Roma 1", saved.getVia());
+        assertEquals("Rende", saved.getCitta());
+        check.close();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.cache.EntityCache;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import java.util.Date;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che la cache degli oggetti non condivida mai istanze gestite da un
+ * EntityManager tra servizi diversi.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class EntityCacheTest {
+
+    private static EntityManagerFactory emf;
+    private Categoria categoria;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        EntityCache.enable(Prodotto.class, 100, 0);
+        TestService s = new TestService(emf.createEntityManager(), Categoria.class);
+        categoria = s.create(new Categoria("Libri"));
+        s.close();
+    }
+
+    @After
+    public void tearDown() {
+        EntityCache.disable(Prodotto.class);
+    }
+
+    private Prodotto create(String nome) throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s.create(new Prodotto(nome, 10, categoria));
+        s.close();
+        return p;
+    }
+
+    @Test
+    public void readReturnsANewUnmanagedCopyOnEveryHit() throws Exception {
+        int id = create("Dizionario").getId();
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        Prodotto a = s.read(id);
+        Prodotto b = s.read(id);
+        assertNotSame(a, b);
+        assertFalse(em.contains(a));
+        assertFalse(em.contains(b));
+        assertEquals("Dizionario", a.getNome());
+        assertEquals(a.getCreato(), b.getCreato());
+        assertNotSame(a.getCreato(), b.getCreato());
+        s.close();
+    }
+
+    @Test
+    public void changesToAReturnedObjectAreNotVisibleToOtherServices() throws Exception {
+        int id = create("Atlante").getId();
+        TestService s1 = new TestService(emf.createEntityManager(), Prodotto.class);
+        TestService s2 = new TestService(emf.createEntityManager(), Prodotto.class);
+        s1.read(id);
+        Prodotto p = s1.read(id);
+        p.setNome("Modificato");
+        p.getCreato().setTime(0);
+        Prodotto q = s2.read(id);
+        assertEquals("Atlante", q.getNome());
+        assertTrue(q.getCreato().getTime() != 0);
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void createDoesNotCacheTheManagedInstance() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s1 = new TestService(em, Prodotto.class);
+        Prodotto p = s1.create(new Prodotto("Romanzo", 12, categoria));
+        assertTrue(em.contains(p));
+        em.getTransaction().begin();
+        p.setNome("Non salvato");
+        TestService s2 = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto q = s2.read(p.getId());
+        assertNotSame(p, q);
+        assertEquals("Romanzo", q.getNome());
+        em.getTransaction().rollback();
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void missDoesNotCacheTheManagedInstance() throws Exception {
+        int id = create("Saggio").getId();
+        EntityCache.evictAll(Prodotto.class);
+        EntityManager em = emf.createEntityManager();
+        TestService s1 = new TestService(em, Prodotto.class);
+        Prodotto p = s1.read(id);
+        p.setNome("Non salvato");
+        TestService s2 = new TestService(emf.createEntityManager(), Prodotto.class);
+        assertEquals("Saggio", ((Prodotto) s2.read(id)).getNome());
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void missAndHitBothReturnUnmanagedCopies() throws Exception {
+        int id = create("Trattato").getId();
+        EntityCache.evictAll(Prodotto.class);
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        Prodotto miss = s.read(id);
+        Prodotto hit = s.read(id);
+        assertFalse(em.contains(miss));
+        assertFalse(em.contains(hit));
+        em.getTransaction().begin();
+        miss.setNome("Non salvato");
+        hit.setNome("Non salvato");
+        em.getTransaction().commit();
+        s.close();
+        EntityManager check = emf.createEntityManager();
+        assertEquals("Trattato", check.find(Prodotto.class, id).getNome());
+        check.close();
+    }
+
+    @Test
+    public void updateReplacesTheCachedState() throws Exception {
+        int id = create("Manuale").getId();
+        TestService s1 = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s1.read(id);
+        p.setPrezzo(20);
+        p.setCreato(new Date(1000));
+        s1.update(p);
+        TestService s2 = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto q = s2.read(id);
+        assertEquals(20, q.getPrezzo(), 0);
+        assertEquals(1000, q.getCreato().getTime());
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void outerTransactionCommittedDirectlyEvictsTheEntry() throws Exception {
+        int id = create("Enciclopedia").getId();
+        EntityManager em = emf.createEntityManager();
+        TestService s1 = new TestService(em, Prodotto.class);
+        TestService s2 = new TestService(emf.createEntityManager(), Prodotto.class);
+        em.getTransaction().begin();
+        Prodotto p = s1.read(id);
+        p.setNome("Aggiornata");
+        s1.update(p);
+        assertEquals("Enciclopedia", ((Prodotto) s2.read(id)).getNome());
+        em.getTransaction().commit();
+        TestService s3 = new TestService(emf.createEntityManager(), Prodotto.class);
+        assertEquals("Aggiornata", ((Prodotto) s3.read(id)).getNome());
+        s1.close();
+        s2.close();
+        s3.close();
+    }
+
+    @Test
+    public void associationsAreReferencesOfTheReadingEntityManager() throws Exception {
+        int id = create("Guida").getId();
+        TestService s1 = new TestService(emf.createEntityManager(), Prodotto.class);
+        s1.read(id);
+        s1.close();
+        EntityManager em = emf.createEntityManager();
+        TestService s2 = new TestService(em, Prodotto.class);
+        Prodotto p = s2.read(id);
+        assertTrue(em.contains(p.getCategoria()));
+        assertEquals("Libri", p.getCategoria().getNome());
+        s2.close();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che i percorsi di fetch di list() e read() carichino le entità
+ * correlate con la stessa query.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class FetchPlanTest {
+
+    private static EntityManagerFactory emf;
+    private static PersistenceUnitUtil util;
+    private static Statistics statistics;
+    private static List<FilterCondition> filter;
+    private static List<SortingVerse> order;
+    private static int id;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        util = emf.getPersistenceUnitUtil();
+        statistics = ((SessionFactory) emf).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        TestService sc = new TestService(emf.createEntityManager(), Categoria.class);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        for (int i = 0; i < 3; i++) {
+            Categoria c = sc.create(new Categoria("Caricata " + i));
+            id = ((Prodotto) s.create(new Prodotto("Con categoria " + i, 161.5, c))).getId();
+        }
+        sc.close();
+        s.close();
+        filter = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, 161.5, true));
+        order = Arrays.asList(new SortingVerse("nome", SortingVerse.ASC, true));
+    }
+
+    @Test
+    public void listWithoutFetchLeavesTheAssociationsLazy() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Prodotto> res = s.list(filter, order, null, null);
+        assertEquals(3, res.size());
+        for (Prodotto p : res) {
+            assertFalse(util.isLoaded(p.getCategoria()));
+        }
+        s.close();
+    }
+
+    @Test
+    public void listWithFetchLoadsTheAssociationsInOneQuery() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        long queries = statistics.getPrepareStatementCount();
+        List<Prodotto> res = s.list(filter, order, 1, 2, Collections.singletonList("categoria"));
+        assertEquals(2, res.size());
+        for (Prodotto p : res) {
+            assertTrue(util.isLoaded(p.getCategoria()));
+            assertTrue(p.getCategoria().getNome().startsWith("Caricata"));
+        }
+        assertEquals(queries + 1, statistics.getPrepareStatementCount());
+        assertEquals("Con categoria 1", res.get(0).getNome());
+        s.close();
+    }
+
+    @Test
+    public void readWithFetchLoadsTheAssociation() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s.read(id, new HashMap<String, Object>(), Collections.singletonList("categoria"));
+        assertTrue(util.isLoaded(p.getCategoria()));
+        assertEquals("Caricata 2", p.getCategoria().getNome());
+        assertNull(s.read(-1, new HashMap<String, Object>(), Collections.singletonList("categoria")));
+        s.close();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void nonAssociationPathIsRejected() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        try {
+            s.list(filter, order, null, null, Collections.singletonList("nome"));
+        } finally {
+            s.close();
+        }
+    }
+}
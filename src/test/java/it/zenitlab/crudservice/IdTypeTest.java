@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Articolo;
+import it.zenitlab.crudservice.model.Documento;
+import java.util.Collections;
+import java.util.UUID;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica read(), patch() e getId() su entità con id Long e UUID.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class IdTypeTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Test
+    public void longIds() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Articolo.class);
+        Articolo a = s.create(new Articolo("Lungo"));
+        Long id = a.getId();
+        assertEquals(id, s.getId(a));
+        s.close();
+        s = new TestService(emf.createEntityManager(), Articolo.class);
+        Articolo r = s.read(id);
+        assertEquals("Lungo", r.getNome());
+        assertSame(r, s.read(String.valueOf(id)));
+        assertSame(r, s.read(id.intValue()));
+        assertEquals(id, s.getId(r));
+        s.patch(id, Collections.<String, Object>singletonMap("nome", "Aggiornato"));
+        s.close();
+        s = new TestService(emf.createEntityManager(), Articolo.class);
+        assertEquals("Aggiornato", ((Articolo) s.read(id)).getNome());
+        s.close();
+    }
+
+    @Test
+    public void uuidIds() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Documento.class);
+        Documento d = s.create(new Documento("Universale"));
+        UUID id = d.getId();
+        assertEquals(id, s.getId(d));
+        s.close();
+        s = new TestService(emf.createEntityManager(), Documento.class);
+        Documento r = s.read(id);
+        assertEquals("Universale", r.getTitolo());
+        assertSame(r, s.read(id.toString()));
+        assertEquals(id, s.getId(r));
+        assertNull(s.read(UUID.randomUUID()));
+        s.patch(id.toString(), Collections.<String, Object>singletonMap("titolo", "Aggiornato"));
+        s.close();
+        s = new TestService(emf.createEntityManager(), Documento.class);
+        assertEquals("Aggiornato", ((Documento) s.read(id)).getTitolo());
+        s.close();
+    }
+}
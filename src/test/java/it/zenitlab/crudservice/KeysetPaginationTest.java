@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.crudservice.query.KeysetPage;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la paginazione a chiave di listAfter().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class KeysetPaginationTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    private static List<FilterCondition> prezzo(double prezzo) {
+        return Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, prezzo, true));
+    }
+
+    @Test
+    public void pagesCoverEveryRowOnce() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Integer> created = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            created.add(((Prodotto) s.create(new Prodotto("Pagina " + i, 71.5, null))).getId());
+        }
+        List<SortingVerse> order = Arrays.asList(new SortingVerse("prezzo", SortingVerse.DESC, true));
+        List<Integer> read = new ArrayList<Integer>();
+        String token = null;
+        int pages = 0;
+        do {
+            KeysetPage page = s.listAfter(prezzo(71.5), order, token, 2);
+            for (Object o : page.getRows()) {
+                read.add(((Prodotto) o).getId());
+            }
+            token = page.getNextToken();
+            pages++;
+        } while (token != null);
+        assertEquals(3, pages);
+        assertEquals(created, read);
+        s.close();
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void nullableSortAttributeIsRejected() throws Exception {
+        TestService sc = new TestService(emf.createEntityManager(), Categoria.class);
+        Categoria c = sc.create(new Categoria("Nulli"));
+        sc.close();
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto(null, 72.5, c));
+        s.create(new Prodotto("Con nome", 72.5, c));
+        try {
+            s.listAfter(prezzo(72.5), Arrays.asList(new SortingVerse("nome", SortingVerse.ASC, true)), null, 10);
+        } finally {
+            s.close();
+        }
+    }
+}
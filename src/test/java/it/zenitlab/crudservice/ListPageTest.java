@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.crudservice.query.Page;
+import it.zenitlab.crudservice.query.PageOptions;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica il calcolo del totale di listPage(): conteggio evitato per le
+ * pagine incomplete e riuso dei totali memorizzati.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ListPageTest {
+
+    private static EntityManagerFactory emf;
+    private static Statistics statistics;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        statistics = ((SessionFactory) emf).getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    private static List<FilterCondition> prezzo(double prezzo) {
+        return Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, prezzo, true));
+    }
+
+    private static TestService create(double prezzo, int n) throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        for (int i = 0; i < n; i++) {
+            s.create(new Prodotto("Pagina " + i, prezzo, null));
+        }
+        return s;
+    }
+
+    @Test
+    public void shortPageSkipsTheCount() throws Exception {
+        TestService s = create(101.5, 3);
+        long queries = statistics.getQueryExecutionCount();
+        Page page = s.listPage(prezzo(101.5), null, 0, 10, new PageOptions(false, true, 0));
+        assertEquals(3, page.getRows().size());
+        assertEquals(3, page.getTotal());
+        assertEquals(queries + 1, statistics.getQueryExecutionCount());
+        page = s.listPage(prezzo(101.5), null, 2, 10, new PageOptions(false, true, 0));
+        assertEquals(1, page.getRows().size());
+        assertEquals(3, page.getTotal());
+        queries = statistics.getQueryExecutionCount();
+        page = s.listPage(prezzo(101.5), null, 0, 10, new PageOptions(false, false, 0));
+        assertEquals(3, page.getTotal());
+        assertEquals(queries + 2, statistics.getQueryExecutionCount());
+        s.close();
+    }
+
+    @Test
+    public void pageBeyondTheLastRowIsCounted() throws Exception {
+        TestService s = create(102.5, 3);
+        Page page = s.listPage(prezzo(102.5), null, 10, 10, new PageOptions(false, true, 0));
+        assertTrue(page.getRows().isEmpty());
+        assertEquals(3, page.getTotal());
+        s.close();
+    }
+
+    @Test
+    public void cachedTotalIsReusedUntilAWrite() throws Exception {
+        TestService s = create(103.5, 3);
+        PageOptions options = new PageOptions(false, true, 60000);
+        assertEquals(3, s.listPage(prezzo(103.5), null, 0, 2, options).getTotal());
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.persist(new Prodotto("Non vista", 103.5, null));
+        em.getTransaction().commit();
+        em.close();
+        long queries = statistics.getQueryExecutionCount();
+        assertEquals(3, s.listPage(prezzo(103.5), null, 0, 2, options).getTotal());
+        assertEquals(queries + 1, statistics.getQueryExecutionCount());
+        s.create(new Prodotto("Vista", 103.5, null));
+        assertEquals(5, s.listPage(prezzo(103.5), null, 0, 2, options).getTotal());
+        s.close();
+    }
+
+    @Test
+    public void totalCountedInsideATransactionIsNotCached() throws Exception {
+        TestService s = create(104.5, 2);
+        PageOptions options = new PageOptions(false, true, 60000);
+        s.em.getTransaction().begin();
+        s.create(new Prodotto("Annullata", 104.5, null));
+        assertEquals(3, s.listPage(prezzo(104.5), null, 0, 1, options).getTotal());
+        s.em.getTransaction().rollback();
+        assertEquals(2, s.listPage(prezzo(104.5), null, 0, 1, options).getTotal());
+        s.close();
+    }
+}
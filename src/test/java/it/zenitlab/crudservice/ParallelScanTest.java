@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.crudservice.query.ParallelScan;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la lettura parallela su executor condiviso e su executor limitato.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ParallelScanTest {
+
+    private static TestService service;
+    private static final List<Integer> created = new ArrayList<Integer>();
+    private static final List<FilterCondition> filter = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, 555.0, true));
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        EM.init("crudservice-test");
+        service = new TestService(EM.getFactory("crudservice-test").createEntityManager(), Prodotto.class);
+        for (int i = 0; i < 25; i++) {
+            created.add(service.<Prodotto>create(new Prodotto("p" + i, 555, null)).getId());
+        }
+        // blocchi e code piccoli, in modo che le partizioni attendano il consumatore
+        service.setBatchSize(2);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        service.close();
+    }
+
+    @Test
+    public void orderedScanOnASingleThreadExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ParallelScan<Prodotto> it = service.scan(filter, null, 4, true, executor);
+        ArrayList<Integer> read = new ArrayList<Integer>();
+        while (it.hasNext()) {
+            read.add(it.next().getId());
+        }
+        assertEquals(created, read);
+        executor.shutdown();
+    }
+
+    @Test
+    public void unorderedScanOnTheSharedExecutor() throws Exception {
+        ParallelScan<Prodotto> it = service.scan(filter, null, 4, false);
+        HashSet<Integer> read = new HashSet<Integer>();
+        while (it.hasNext()) {
+            Prodotto p = it.next();
+            assertEquals(555, p.getPrezzo(), 0);
+            read.add(p.getId());
+        }
+        assertEquals(new HashSet<Integer>(created), read);
+    }
+}
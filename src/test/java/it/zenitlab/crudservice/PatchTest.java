@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.exception.MissingParameterException;
+import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.crudservice.model.Prodotto;
+import java.util.Collections;
+import java.util.HashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica l'aggiornamento parziale per id di patch().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class PatchTest {
+
+    private static EntityManagerFactory emf;
+    private static Statistics statistics;
+
+    /**
+     * Servizio con beforeMerge: patch deve leggere l'oggetto.
+     */
+    static class HookService extends TestService {
+
+        Object merged;
+
+        HookService(EntityManager em) {
+            super(em, Prodotto.class);
+        }
+
+        @Override
+        public void beforeMerge(Object o, HashMap<String, Object> params) throws ServiceException {
+            merged = o;
+        }
+    }
+
+    /**
+     * Servizio che rifiuta i prodotti con prezzo negativo.
+     */
+    static class ValidatingService extends TestService {
+
+        ValidatingService(EntityManager em) {
+            super(em, Prodotto.class);
+        }
+
+        @Override
+        public void validate(Object o, int operationType, HashMap<String, Object> params) throws ServiceException {
+            if (((Prodotto) o).getPrezzo() < 0) {
+                throw new InvalidParameterException("prezzo", ((Prodotto) o).getPrezzo(), "Prezzo negativo");
+            }
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        statistics = ((SessionFactory) emf).getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    private static Prodotto create(String nome) throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s.create(new Prodotto(nome, 181.5, null));
+        s.close();
+        return p;
+    }
+
+    private static Prodotto reload(int id) throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto p = s.read(id);
+        s.close();
+        return p;
+    }
+
+    @Test
+    public void withoutHooksOnlyTheChangedAttributesAreUpdated() throws Exception {
+        Prodotto p = create("Parziale");
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        long loads = statistics.getEntityLoadCount();
+        s.patch(String.valueOf(p.getId()), Collections.<String, Object>singletonMap("prezzo", "182.5"));
+        assertEquals(loads, statistics.getEntityLoadCount());
+        s.close();
+        Prodotto q = reload(p.getId());
+        assertEquals(182.5, q.getPrezzo(), 0);
+        assertEquals("Parziale", q.getNome());
+        assertEquals(p.getCreato(), q.getCreato());
+    }
+
+    @Test
+    public void withHooksTheObjectIsLoaded() throws Exception {
+        Prodotto p = create("Con hook");
+        HookService s = new HookService(emf.createEntityManager());
+        s.patch(p.getId(), Collections.<String, Object>singletonMap("nome", "Aggiornato"));
+        assertNotNull(s.merged);
+        assertEquals("Aggiornato", ((Prodotto) s.merged).getNome());
+        s.close();
+        assertEquals("Aggiornato", reload(p.getId()).getNome());
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws Exception {
+        Prodotto p = create("Invariato");
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        try {
+            s.patch(-1, Collections.<String, Object>singletonMap("nome", "Nessuno"));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        try {
+            s.patch(p.getId(), Collections.<String, Object>singletonMap("id", 1));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        try {
+            s.patch(p.getId(), Collections.<String, Object>singletonMap("prezzo", null));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        try {
+            s.patch(p.getId(), Collections.<String, Object>emptyMap());
+            fail();
+        } catch (MissingParameterException e) {
+            // atteso
+        }
+        s.close();
+        assertEquals("Invariato", reload(p.getId()).getNome());
+    }
+
+    @Test
+    public void failedValidationLeavesNothingToFlushInTheCallerTransaction() throws Exception {
+        Prodotto p = create("Rifiutato");
+        ValidatingService s = new ValidatingService(emf.createEntityManager());
+        s.em.getTransaction().begin();
+        try {
+            s.patch(p.getId(), Collections.<String, Object>singletonMap("prezzo", -1));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        assertEquals(181.5, s.em.find(Prodotto.class, p.getId()).getPrezzo(), 0);
+        s.em.getTransaction().commit();
+        s.close();
+        assertEquals(181.5, reload(p.getId()).getPrezzo(), 0);
+    }
+
+    @Test
+    public void withoutHooksTheManagedCopyIsRefreshed() throws Exception {
+        Prodotto p = create("Gestito");
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.em.getTransaction().begin();
+        Prodotto managed = s.em.find(Prodotto.class, p.getId());
+        s.patch(p.getId(), Collections.<String, Object>singletonMap("nome", "Ricaricato"));
+        assertEquals("Ricaricato", managed.getNome());
+        s.em.getTransaction().commit();
+        s.close();
+        assertEquals("Ricaricato", reload(p.getId()).getNome());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.exception.MissingParameterException;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.crudservice.model.ProdottoRiga;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica le proiezioni di listProjection() e listMaps().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ProjectionTest {
+
+    private static final double PREZZO = 151.5;
+    private static EntityManagerFactory emf;
+    private static List<FilterCondition> filter;
+    private static List<SortingVerse> order;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        TestService sc = new TestService(emf.createEntityManager(), Categoria.class);
+        Categoria c = sc.create(new Categoria("Proiettata"));
+        sc.close();
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto("Beta", PREZZO, c));
+        s.create(new Prodotto("Alfa", PREZZO, null));
+        s.close();
+        filter = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, PREZZO, true));
+        order = Arrays.asList(new SortingVerse("nome", SortingVerse.ASC, true));
+    }
+
+    @Test
+    public void rowsHoldTheAttributesInOrder() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Object[]> rows = s.listProjection(filter, order, null, null, Arrays.asList("nome", "categoria.nome", "prezzo"));
+        assertEquals(2, rows.size());
+        assertArrayEquals(new Object[]{"Alfa", null, PREZZO}, rows.get(0));
+        assertArrayEquals(new Object[]{"Beta", "Proiettata", PREZZO}, rows.get(1));
+        rows = s.listProjection(filter, order, 1, 1, Collections.singletonList("nome"));
+        assertEquals(1, rows.size());
+        assertArrayEquals(new Object[]{"Beta"}, rows.get(0));
+        s.close();
+    }
+
+    @Test
+    public void mapsAreKeyedByAttributePath() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Map<String, Object>> rows = s.listMaps(filter, order, null, null, Arrays.asList("nome", "categoria.nome"));
+        assertEquals(Arrays.asList("nome", "categoria.nome"), new ArrayList<String>(rows.get(1).keySet()));
+        assertEquals("Beta", rows.get(1).get("nome"));
+        assertEquals("Proiettata", rows.get(1).get("categoria.nome"));
+        s.close();
+    }
+
+    @Test
+    public void resultClassIsBuiltFromTheAttributes() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<ProdottoRiga> rows = s.listProjection(filter, order, null, null, Arrays.asList("nome", "categoria.nome"), ProdottoRiga.class);
+        assertEquals(2, rows.size());
+        assertEquals("Alfa", rows.get(0).getNome());
+        assertEquals("Proiettata", rows.get(1).getCategoria());
+        s.close();
+    }
+
+    @Test
+    public void associationsAndMissingAttributesAreRejected() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        try {
+            s.listProjection(filter, order, null, null, Collections.singletonList("categoria"));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        try {
+            s.listProjection(filter, order, null, null, Collections.<String>emptyList());
+            fail();
+        } catch (MissingParameterException e) {
+            // atteso
+        }
+        s.close();
+    }
+}
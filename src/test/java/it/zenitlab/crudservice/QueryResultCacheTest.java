@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.cache.QueryCache;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica l'uso e l'invalidazione della cache dei risultati di list() e
+ * count().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryResultCacheTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Before
+    public void setUp() {
+        QueryCache.enable(Categoria.class, 100, 0);
+    }
+
+    @After
+    public void tearDown() {
+        QueryCache.disable(Categoria.class);
+    }
+
+    private static List<FilterCondition> nome(String nome) {
+        return Arrays.asList(new FilterCondition("nome", FilterCondition.EQ, nome, true));
+    }
+
+    @Test
+    public void repeatedCountIsServedFromTheCache() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Categoria.class);
+        s.create(new Categoria("Ripetuta"));
+        assertEquals(1, s.count(nome("Ripetuta")));
+        assertEquals(1, s.list(nome("Ripetuta"), null, null, null).size());
+        long hits = QueryCache.get(Categoria.class).getHits();
+        assertEquals(1, s.count(nome("Ripetuta")));
+        assertEquals(1, s.list(nome("Ripetuta"), null, null, null).size());
+        assertEquals(hits + 2, QueryCache.get(Categoria.class).getHits());
+        s.close();
+    }
+
+    @Test
+    public void writeThroughAServiceInvalidatesTheResults() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Categoria.class);
+        assertEquals(0, s.count(nome("Invalidata")));
+        assertEquals(0, s.list(nome("Invalidata"), null, null, null).size());
+        s.create(new Categoria("Invalidata"));
+        assertEquals(1, s.count(nome("Invalidata")));
+        assertEquals(1, s.list(nome("Invalidata"), null, null, null).size());
+        s.close();
+    }
+
+    @Test
+    public void outerTransactionCommittedDirectlyInvalidatesTheResults() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService writer = new TestService(em, Categoria.class);
+        TestService reader = new TestService(emf.createEntityManager(), Categoria.class);
+        em.getTransaction().begin();
+        writer.create(new Categoria("Esterna"));
+        assertEquals(0, reader.count(nome("Esterna")));
+        assertEquals(0, reader.list(nome("Esterna"), null, null, null).size());
+        em.getTransaction().commit();
+        assertEquals(1, reader.count(nome("Esterna")));
+        assertEquals(1, reader.list(nome("Esterna"), null, null, null).size());
+        writer.close();
+        reader.close();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Prodotto;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la lettura per id multipli di readAll().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ReadAllTest {
+
+    private static EntityManagerFactory emf;
+    private static Statistics statistics;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+        statistics = ((SessionFactory) emf).getStatistics();
+        statistics.setStatisticsEnabled(true);
+    }
+
+    private static List<Integer> create(int n) throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            ids.add(((Prodotto) s.create(new Prodotto("Multipla " + i, 141.5, null))).getId());
+        }
+        s.close();
+        return ids;
+    }
+
+    @Test
+    public void idsAreReadInChunksAndInTheRequestedOrder() throws Exception {
+        List<Integer> ids = create(5);
+        Collections.reverse(ids);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.inChunkSize = 2;
+        long queries = statistics.getQueryExecutionCount();
+        Map<Integer, Prodotto> res = s.readAll(ids);
+        assertEquals(queries + 3, statistics.getQueryExecutionCount());
+        assertEquals(ids, new ArrayList<Integer>(res.keySet()));
+        for (Map.Entry<Integer, Prodotto> e : res.entrySet()) {
+            assertEquals(e.getKey(), e.getValue().getId());
+        }
+        s.close();
+    }
+
+    @Test
+    public void duplicateNullAndMissingIdsAreSkipped() throws Exception {
+        List<Integer> ids = create(2);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Map<Integer, Prodotto> res = s.readAll(Arrays.asList(ids.get(1), null, -1, ids.get(0), ids.get(1)));
+        assertEquals(Arrays.asList(ids.get(1), ids.get(0)), new ArrayList<Integer>(res.keySet()));
+        assertTrue(s.readAll(Collections.<Integer>emptyList()).isEmpty());
+        s.close();
+    }
+
+    @Test
+    public void managedInstancesAreReturned() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Prodotto.class);
+        Prodotto p = s.create(new Prodotto("Gestito", 142.5, null));
+        Map<Integer, Prodotto> res = s.readAll(Arrays.asList(p.getId()));
+        assertSame(p, res.get(p.getId()));
+        s.close();
+    }
+
+    @Test
+    public void loadedObjectsAreNotReadAgain() throws Exception {
+        List<Integer> ids = create(2);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        Prodotto loaded = s.em.find(Prodotto.class, ids.get(0));
+        long queries = statistics.getQueryExecutionCount();
+        Map<Integer, Prodotto> res = s.readAll(Arrays.asList(ids.get(0)));
+        assertEquals(queries, statistics.getQueryExecutionCount());
+        assertSame(loaded, res.get(ids.get(0)));
+        res = s.readAll(ids);
+        assertEquals(queries + 1, statistics.getQueryExecutionCount());
+        assertSame(loaded, res.get(ids.get(0)));
+        assertEquals(ids, new ArrayList<Integer>(res.keySet()));
+        s.close();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Categoria;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la scelta tra DB principale e replica per le letture, compresa la
+ * finestra di lettura delle proprie scritture.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ReadReplicaTest {
+
+    private static final String PRIMARY = "crudservice-test-primary", REPLICA = "crudservice-test-replica";
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init(PRIMARY);
+        EM.initReplica(PRIMARY, REPLICA);
+        EntityManager em = EM.getFactory(REPLICA).createEntityManager();
+        em.getTransaction().begin();
+        em.persist(new Categoria("Replica"));
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    private TestService service;
+
+    @Before
+    public void setUp() {
+        service = new TestService(EM.getFactory(PRIMARY).createEntityManager(), Categoria.class);
+    }
+
+    private List<String> names(List l) {
+        ArrayList<String> res = new ArrayList<String>();
+        for (Object o : l) {
+            res.add(((Categoria) o).getNome());
+        }
+        return res;
+    }
+
+    @Test
+    public void readsOutsideTransactionsUseTheReplica() throws Exception {
+        assertTrue(names(service.list(null, null, null, null)).contains("Replica"));
+        assertTrue(service.count(null) >= 1);
+        assertTrue(names(service.listAfter(null, null, null, 10).getRows()).contains("Replica"));
+        assertEquals(1, service.listMaps(null, null, null, null, Arrays.asList("nome")).size());
+        service.close();
+    }
+
+    @Test
+    public void ownWritesAreReadFromThePrimaryWithinTheWindow() throws Exception {
+        service.setReadYourWritesWindow(200);
+        Categoria c = service.create(new Categoria("Primaria"));
+        assertNotNull(service.read(c.getId()));
+        assertTrue(names(service.list(null, null, null, null)).contains("Primaria"));
+        assertEquals(1, service.readAll(Arrays.asList(c.getId())).size());
+        Thread.sleep(300);
+        List<String> names = names(service.list(null, null, null, null));
+        assertTrue(names.contains("Replica"));
+        assertFalse(names.contains("Primaria"));
+        service.close();
+    }
+
+    @Test
+    public void readsInATransactionUseThePrimary() throws Exception {
+        service.em.getTransaction().begin();
+        assertFalse(names(service.list(null, null, null, null)).contains("Replica"));
+        service.em.getTransaction().rollback();
+        service.close();
+    }
+
+    @Test
+    public void replicaReadsReturnDetachedObjectsAndSeeLaterChanges() throws Exception {
+        EntityManager writer = EM.getFactory(REPLICA).createEntityManager();
+        writer.getTransaction().begin();
+        Categoria c = new Categoria("Prima");
+        writer.persist(c);
+        writer.getTransaction().commit();
+        Categoria a = service.read(c.getId());
+        assertEquals("Prima", a.getNome());
+        assertFalse(service.em.contains(a));
+        writer.getTransaction().begin();
+        c.setNome("Dopo");
+        writer.getTransaction().commit();
+        Categoria b = service.read(c.getId());
+        assertNotSame(a, b);
+        assertEquals("Dopo", b.getNome());
+        service.close();
+        writer.getTransaction().begin();
+        writer.remove(c);
+        writer.getTransaction().commit();
+        writer.close();
+    }
+
+    @Test
+    public void readAllReturnsTheInstancesAlreadyLoadedFromThePrimary() throws Exception {
+        service.setReadYourWritesWindow(0);
+        Categoria c = service.create(new Categoria("Solo primaria"));
+        Map<Integer, Categoria> res = service.readAll(Arrays.asList(c.getId()));
+        assertSame(c, res.get(c.getId()));
+        service.close();
+    }
+}
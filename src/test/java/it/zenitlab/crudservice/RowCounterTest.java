@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.cache.RowCounter;
+import it.zenitlab.crudservice.model.Categoria;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che il contatore di righe resti corretto quando la transazione in
+ * cui avvengono le scritture non è confermata dal servizio che le ha
+ * effettuate.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class RowCounterTest {
+
+    private static EntityManagerFactory emf;
+    private static volatile CountDownLatch counting, proceed;
+
+    /**
+     * Funzione SQL usata dal conteggio approssimato: segnala l'inizio del
+     * conteggio e attende il via libera.
+     *
+     * @return 0
+     * @throws InterruptedException
+     */
+    public static long attesa() throws InterruptedException {
+        counting.countDown();
+        proceed.await(10, TimeUnit.SECONDS);
+        return 0;
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Before
+    public void setUp() {
+        RowCounter.enable(emf, Categoria.class, 0);
+    }
+
+    @After
+    public void tearDown() {
+        RowCounter.disable(Categoria.class);
+    }
+
+    private static long rows() {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return (Long) em.createQuery("SELECT COUNT(o) FROM Categoria o").getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private static void insertBypassingTheCounter() {
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.persist(new Categoria("Fuori dal servizio"));
+        em.getTransaction().commit();
+        em.close();
+    }
+
+    @Test
+    public void outerTransactionCommittedDirectly() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Categoria.class);
+        long before = s.count(null);
+        em.getTransaction().begin();
+        s.create(new Categoria("Esterna"));
+        em.getTransaction().commit();
+        assertEquals(before + 1, s.count(null));
+        s.create(new Categoria("Successiva"));
+        assertEquals(before + 2, s.count(null));
+        assertEquals(rows(), s.count(null));
+        s.close();
+    }
+
+    @Test
+    public void outerTransactionRolledBackDirectly() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Categoria.class);
+        long before = s.count(null);
+        em.getTransaction().begin();
+        s.create(new Categoria("Annullata"));
+        em.getTransaction().rollback();
+        assertEquals(before, s.count(null));
+        s.create(new Categoria("Successiva"));
+        assertEquals(before + 1, s.count(null));
+        s.close();
+    }
+
+    @Test
+    public void outerTransactionCommittedByAnotherService() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService outer = new TestService(em, Categoria.class);
+        TestService inner = new TestService(em, Categoria.class);
+        long before = outer.count(null);
+        insertBypassingTheCounter();
+        outer.beginTransaction();
+        inner.create(new Categoria("Interna"));
+        outer.commitTransaction();
+        assertEquals("delta applied without reseeding", before + 1, outer.count(null));
+        inner.close();
+    }
+
+    @Test
+    public void rollbackOutsideTheServiceIsNotMergedIntoTheNextDelete() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        TestService s = new TestService(em, Categoria.class);
+        Categoria c = s.create(new Categoria("Da eliminare"));
+        s.count(null);
+        em.getTransaction().begin();
+        s.create(new Categoria("Annullata"));
+        em.getTransaction().rollback();
+        s.delete(c.getId());
+        assertEquals(rows(), s.count(null));
+        s.close();
+    }
+
+    @Test
+    public void deltaAppliedDuringTheCountIsKept() throws Exception {
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        em.createNativeQuery("CREATE ALIAS IF NOT EXISTS ATTESA FOR \"" + RowCounterTest.class.getName() + ".attesa\"").executeUpdate();
+        em.getTransaction().commit();
+        em.close();
+        counting = new CountDownLatch(1);
+        proceed = new CountDownLatch(1);
+        final RowCounter counter = RowCounter.enableApproximate(emf, Categoria.class, "SELECT (SELECT COUNT(*) FROM Categoria) + ATTESA()", 0);
+        Thread reconcile = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                counter.reconcile();
+            }
+        });
+        reconcile.start();
+        assertTrue(counting.await(10, TimeUnit.SECONDS));
+        long before = rows();
+        counter.add(1);
+        proceed.countDown();
+        reconcile.join(10000);
+        assertEquals(before + 1, counter.get());
+    }
+}
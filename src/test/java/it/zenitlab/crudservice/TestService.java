@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.ServiceException;
+import java.util.HashMap;
+import javax.persistence.EntityManager;
+
+/**
+ * Servizio di prova senza logica applicativa.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class TestService extends CRUDService {
+
+    public TestService(EntityManager em, Class entityClass) {
+        super(em, entityClass);
+    }
+
+    public TestService(String persistenceUnit, Class entityClass) {
+        super(persistenceUnit, entityClass);
+    }
+
+    @Override
+    public void beforePersist(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+
+    @Override
+    public void afterPersist(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+
+    @Override
+    public void beforeRemove(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+
+    @Override
+    public void afterRemove(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+
+    @Override
+    public void checkRemovable(Object o, HashMap<String, Object> params) throws ServiceException {
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.model.Categoria;
+import javax.persistence.EntityManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la gestione dell'EntityManager condiviso all'interno di uno scope.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class ThreadBoundEntityManagerProviderTest {
+
+    private static final String UNIT = "crudservice-test";
+    private EntityManagerProvider previous;
+    private ThreadBoundEntityManagerProvider provider;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init(UNIT);
+    }
+
+    @Before
+    public void setUp() {
+        previous = EM.getProvider();
+        provider = new ThreadBoundEntityManagerProvider();
+        EM.setProvider(provider);
+        provider.begin();
+    }
+
+    @After
+    public void tearDown() {
+        provider.end();
+        EM.setProvider(previous);
+    }
+
+    @Test
+    public void closeDoesNotCloseTheScopedEntityManager() {
+        EntityManager em = EM.getInstance(UNIT);
+        em.close();
+        assertTrue(em.isOpen());
+        assertSame(em, EM.getInstance(UNIT));
+        provider.end();
+        assertFalse(em.isOpen());
+    }
+
+    @Test
+    public void releaseRollsBackATransactionLeftActive() throws Exception {
+        TestService s1 = new TestService(UNIT, Categoria.class);
+        s1.em.getTransaction().begin();
+        Categoria c = s1.create(new Categoria("Non confermata"));
+        s1.close();
+        EntityManager em = EM.getInstance(UNIT);
+        assertFalse(em.getTransaction().isActive());
+        assertFalse(em.contains(c));
+        TestService s2 = new TestService(UNIT, Categoria.class);
+        assertNull(s2.read(c.getId()));
+        s2.close();
+    }
+
+    @Test
+    public void nestedServiceClosingKeepsTheOuterTransaction() throws Exception {
+        TestService outer = new TestService(UNIT, Categoria.class);
+        outer.beginTransaction();
+        Categoria a = outer.create(new Categoria("Esterna"));
+        TestService nested = new TestService(UNIT, Categoria.class);
+        Categoria b = nested.create(new Categoria("Annidata"));
+        nested.close();
+        assertTrue(outer.em.getTransaction().isActive());
+        assertTrue(outer.em.contains(a));
+        outer.commitTransaction();
+        outer.close();
+        EntityManager check = EM.getFactory(UNIT).createEntityManager();
+        assertNotNull(check.find(Categoria.class, a.getId()));
+        assertNotNull(check.find(Categoria.class, b.getId()));
+        check.close();
+    }
+
+    @Test
+    public void committedWorkSurvivesRelease() throws Exception {
+        TestService s1 = new TestService(UNIT, Categoria.class);
+        Categoria c = s1.create(new Categoria("Confermata"));
+        s1.close();
+        TestService s2 = new TestService(UNIT, Categoria.class);
+        assertNotNull(s2.read(c.getId()));
+        s2.close();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice;
+
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.exception.MissingParameterException;
+import it.zenitlab.crudservice.exception.ServiceException;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica l'aggiornamento per filtro di updateWhere(), con e senza
+ * l'invocazione dei metodi di aggiornamento del servizio.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class UpdateWhereTest {
+
+    private static EntityManagerFactory emf;
+
+    /**
+     * Rifiuta i nomi vuoti e conta le invocazioni di beforeMerge.
+     */
+    static class ValidatingService extends TestService {
+
+        int merged;
+
+        ValidatingService(EntityManager em) {
+            super(em, Prodotto.class);
+        }
+
+        @Override
+        public void validate(Object o, int operationType, HashMap<String, Object> params) throws ServiceException {
+            if (((Prodotto) o).getNome().isEmpty()) {
+                throw new InvalidParameterException("nome", "", "Nome vuoto");
+            }
+        }
+
+        @Override
+        public void beforeMerge(Object o, HashMap<String, Object> params) throws ServiceException {
+            merged++;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    private static List<FilterCondition> prezzo(double prezzo) {
+        return Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, prezzo, true));
+    }
+
+    private static HashMap<String, Object> assign(String attribute, Object value) {
+        HashMap<String, Object> res = new HashMap<String, Object>();
+        res.put(attribute, value);
+        return res;
+    }
+
+    @Test
+    public void onlyMatchingRowsAreUpdated() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto("Uno", 131.5, null));
+        s.create(new Prodotto("Due", 131.5, null));
+        Prodotto other = s.create(new Prodotto("Tre", 131.75, null));
+        assertEquals(2, s.updateWhere(prezzo(131.5), assign("prezzo", 132)));
+        assertEquals(0, s.count(prezzo(131.5)));
+        assertEquals(2, s.count(prezzo(132)));
+        s.close();
+        TestService check = new TestService(emf.createEntityManager(), Prodotto.class);
+        assertEquals(131.75, ((Prodotto) check.read(other.getId())).getPrezzo(), 0);
+        check.close();
+    }
+
+    @Test
+    public void idAndEmptyAssignmentsAreRejected() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        try {
+            s.updateWhere(prezzo(133.5), assign("id", 1));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        try {
+            s.updateWhere(prezzo(133.5), new HashMap<String, Object>());
+            fail();
+        } catch (MissingParameterException e) {
+            // atteso
+        }
+        try {
+            s.updateWhere(prezzo(133.5), assign("prezzo", "non un numero"));
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        s.close();
+    }
+
+    @Test
+    public void hooksAreInvokedOnEveryMatchingObject() throws Exception {
+        ValidatingService s = new ValidatingService(emf.createEntityManager());
+        for (int i = 0; i < 3; i++) {
+            s.create(new Prodotto("Originale", 134.5, null));
+        }
+        assertEquals(3, s.updateWhere(prezzo(134.5), assign("nome", "Aggiornato"), new HashMap<String, Object>(), true));
+        assertEquals(3, s.merged);
+        List<FilterCondition> aggiornati = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, 134.5, true),
+                new FilterCondition("nome", FilterCondition.EQ, "Aggiornato", true));
+        assertEquals(3, s.count(aggiornati));
+        s.close();
+    }
+
+    @Test
+    public void validationFailureRollsBackEveryObject() throws Exception {
+        ValidatingService s = new ValidatingService(emf.createEntityManager());
+        s.create(new Prodotto("Intatto", 135.5, null));
+        s.create(new Prodotto("Intatto", 135.5, null));
+        try {
+            s.updateWhere(prezzo(135.5), assign("nome", ""), new HashMap<String, Object>(), true);
+            fail();
+        } catch (InvalidParameterException e) {
+            // atteso
+        }
+        s.close();
+        TestService check = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<FilterCondition> intatti = Arrays.asList(new FilterCondition("prezzo", FilterCondition.EQ, 135.5, true),
+                new FilterCondition("nome", FilterCondition.EQ, "Intatto", true));
+        assertEquals(2, check.count(intatti));
+        check.close();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che un risultato letto prima di un'invalidazione non venga
+ * memorizzato dopo di essa.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryCacheTest {
+
+    @Before
+    public void setUp() {
+        QueryCache.enable(QueryCacheTest.class, 10, 0);
+    }
+
+    @After
+    public void tearDown() {
+        QueryCache.disable(QueryCacheTest.class);
+    }
+
+    @Test
+    public void putStoresWhenNotInvalidated() {
+        long g = QueryCache.generation(QueryCacheTest.class);
+        QueryCache.put(QueryCacheTest.class, g, "C|", 3L);
+        assertEquals(3L, QueryCache.get(QueryCacheTest.class).get("C|"));
+    }
+
+    @Test
+    public void putIsDiscardedAfterInvalidation() {
+        long g = QueryCache.generation(QueryCacheTest.class);
+        QueryCache.invalidate(QueryCacheTest.class);
+        QueryCache.put(QueryCacheTest.class, g, "C|", 3L);
+        assertNull(QueryCache.get(QueryCacheTest.class).get("C|"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.metrics;
+
+import it.zenitlab.crudservice.EM;
+import it.zenitlab.crudservice.TestService;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.util.criteria.FilterCondition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che le operazioni di massa e di paginazione registrino la propria
+ * latenza.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class MetricsTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        Metrics.enable();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Metrics.disable();
+    }
+
+    private static long count(String operation) {
+        OperationStatsMBean s = Metrics.getStats(Categoria.class, operation);
+        return s == null ? 0 : s.getCount();
+    }
+
+    @Test
+    public void bulkAndPagingOperationsAreRecorded() throws Exception {
+        TestService s = new TestService(EM.getFactory("crudservice-test").createEntityManager(), Categoria.class);
+        String[] operations = {Metrics.CREATE_ALL, Metrics.READ_ALL, Metrics.LIST_PAGE, Metrics.LIST_AFTER, Metrics.UPDATE_WHERE, Metrics.DELETE_ALL, Metrics.DELETE_WHERE};
+        long[] before = new long[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            before[i] = count(operations[i]);
+        }
+        List<Categoria> created = s.createAll(Arrays.asList(new Categoria("m1"), new Categoria("m2"))).getProcessed();
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (Categoria c : created) {
+            ids.add(c.getId());
+        }
+        assertEquals(2, s.readAll(ids).size());
+        s.listPage(null, null, 0, 10);
+        s.listAfter(null, null, null, 10);
+        HashMap<String, Object> nome = new HashMap<String, Object>();
+        nome.put("nome", "m");
+        assertEquals(1, s.updateWhere(Arrays.asList(new FilterCondition("nome", FilterCondition.EQ, "m1", true)), nome));
+        assertEquals(2, s.deleteAll(ids));
+        s.create(new Categoria("m deleteWhere"));
+        assertEquals(1, s.deleteWhere(Arrays.asList(new FilterCondition("nome", FilterCondition.EQ, "m deleteWhere", true))));
+        for (int i = 0; i < operations.length; i++) {
+            assertEquals(operations[i], before[i] + 1, count(operations[i]));
+        }
+        s.close();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.crudservice.EM;
+import it.zenitlab.crudservice.TestService;
+import it.zenitlab.crudservice.model.Categoria;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che filtri, ordinamenti, proiezioni e fetch sullo stesso percorso
+ * puntato condividano un solo join.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class JoinTreeTest {
+
+    private static EntityManagerFactory emf;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    private static int occurrences(String s, String token) {
+        int n = 0;
+        for (int i = s.indexOf(token); i >= 0; i = s.indexOf(token, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void prefixesAreJoinedOnce() {
+        JoinTree joins = new JoinTree();
+        assertEquals("o.nome", joins.path("nome"));
+        assertEquals("j1.nome", joins.path("categoria.nome"));
+        assertEquals("j1.id", joins.path("categoria.id"));
+        assertEquals(" LEFT JOIN o.categoria j1", joins.getJoins());
+        JoinTree copy = joins.copy();
+        assertEquals("j2.x", copy.path("categoria.padre.x"));
+        assertEquals(" LEFT JOIN o.categoria j1", joins.getJoins());
+        assertEquals(" LEFT JOIN o.categoria j1 LEFT JOIN j1.padre j2", copy.getJoins());
+        copy.fetch("categoria");
+        assertEquals(" LEFT JOIN FETCH o.categoria j1 LEFT JOIN j1.padre j2", copy.getJoins());
+        assertEquals(" LEFT JOIN o.categoria j1", joins.getJoins());
+        assertNull(joins.joined("categoria.padre"));
+    }
+
+    @Test
+    public void filterSortAndProjectionShareTheJoin() throws Exception {
+        List<FilterCondition> filter = Arrays.asList(new FilterCondition("categoria.nome", FilterCondition.LK, "Condivisa%", true),
+                new FilterCondition("categoria.id", FilterCondition.NNL, null, true));
+        List<SortingVerse> order = Arrays.asList(new SortingVerse("categoria.nome", SortingVerse.DESC, true));
+        EntityManager em = emf.createEntityManager();
+        QueryPlan plan = QueryPlanCompiler.compile(em, Prodotto.class, filter, order);
+        assertEquals(1, occurrences(plan.getSelectJpql(), " JOIN "));
+        assertEquals(1, occurrences(plan.getCountJpql(), " JOIN "));
+        String projection = QueryPlanCompiler.projectionJpql(em, Prodotto.class, plan, Arrays.asList("nome", "categoria.nome"), null);
+        assertEquals(1, occurrences(projection, " JOIN "));
+        em.close();
+
+        TestService sc = new TestService(emf.createEntityManager(), Categoria.class);
+        Categoria a = sc.create(new Categoria("Condivisa A"));
+        Categoria b = sc.create(new Categoria("Condivisa B"));
+        sc.close();
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto("Primo", 171.5, a));
+        s.create(new Prodotto("Secondo", 171.5, b));
+        List<Prodotto> res = s.list(filter, order, null, null);
+        assertEquals(2, res.size());
+        assertEquals("Secondo", res.get(0).getNome());
+        assertEquals(2, s.count(filter));
+        s.close();
+    }
+
+    @Test
+    public void fetchReusesTheFilterJoin() throws Exception {
+        List<FilterCondition> filter = Arrays.asList(new FilterCondition("categoria.nome", FilterCondition.EQ, "Recuperata", true));
+        EntityManager em = emf.createEntityManager();
+        QueryPlan plan = QueryPlanCompiler.compile(em, Prodotto.class, filter, null);
+        FetchPlan fp = QueryPlanCompiler.compileFetch(em, Prodotto.class, plan, Collections.singletonList("categoria"));
+        assertEquals(1, occurrences(fp.getFetchJpql(), " JOIN "));
+        assertTrue(fp.getFetchJpql().contains(" LEFT JOIN FETCH o.categoria j1 WHERE"));
+        assertFalse(plan.getSelectJpql().contains("FETCH"));
+        em.close();
+
+        TestService sc = new TestService(emf.createEntityManager(), Categoria.class);
+        Categoria c = sc.create(new Categoria("Recuperata"));
+        sc.close();
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto("Con fetch", 172.5, c));
+        s.close();
+        s = new TestService(emf.createEntityManager(), Prodotto.class);
+        List<Prodotto> res = s.list(filter, null, null, null, Collections.singletonList("categoria"));
+        assertEquals(1, res.size());
+        PersistenceUnitUtil util = emf.getPersistenceUnitUtil();
+        assertTrue(util.isLoaded(res.get(0).getCategoria()));
+        assertEquals("Recuperata", res.get(0).getCategoria().getNome());
+        s.close();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.crudservice.EM;
+import it.zenitlab.crudservice.TestService;
+import it.zenitlab.crudservice.exception.InvalidParameterException;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la compilazione dei filtri in piani condivisi da list() e count().
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class QueryPlanCompilerTest {
+
+    private static EntityManagerFactory emf;
+    private EntityManager em;
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Before
+    public void setUp() {
+        em = emf.createEntityManager();
+    }
+
+    @After
+    public void tearDown() {
+        em.close();
+    }
+
+    private static List<FilterCondition> filter(String nome, double min, double max) {
+        return Arrays.asList(new FilterCondition("nome", FilterCondition.LK, nome, false),
+                new FilterCondition("prezzo", FilterCondition.BT, min, max, true));
+    }
+
+    @Test
+    public void filtersDifferingOnlyInOperandsShareThePlan() throws Exception {
+        QueryPlan a = QueryPlanCompiler.compile(em, Prodotto.class, filter("a%", 1, 2), null);
+        QueryPlan b = QueryPlanCompiler.compile(em, Prodotto.class, filter("b%", 3, 4), null);
+        assertSame(a, b);
+        List<FilterCondition> other = Arrays.asList(new FilterCondition("nome", FilterCondition.EQ, "a", false),
+                new FilterCondition("prezzo", FilterCondition.BT, 1.0, 2.0, true));
+        assertNotSame(a, QueryPlanCompiler.compile(em, Prodotto.class, other, null));
+        List<SortingVerse> order = Arrays.asList(new SortingVerse("prezzo", SortingVerse.ASC, true));
+        assertNotSame(a, QueryPlanCompiler.compile(em, Prodotto.class, filter("a%", 1, 2), order));
+    }
+
+    @Test
+    public void selectAndCountShareTheFilter() throws Exception {
+        QueryPlan plan = QueryPlanCompiler.compile(em, Prodotto.class, filter("a%", 1, 2), null);
+        assertTrue(plan.getFilterWhere().contains("LIKE"));
+        assertTrue(plan.getFilterWhere().contains("BETWEEN"));
+        assertTrue(plan.getSelectJpql().contains(plan.getFilterWhere()));
+        assertTrue(plan.getCountJpql().startsWith("SELECT COUNT(o)"));
+        assertTrue(plan.getCountJpql().endsWith(plan.getFilterWhere()));
+    }
+
+    @Test
+    public void canonicalKeyIgnoresTheOrderOfTheConditions() throws Exception {
+        List<FilterCondition> f = filter("a%", 1, 2);
+        List<FilterCondition> g = Arrays.asList(f.get(1), f.get(0));
+        QueryPlan pf = QueryPlanCompiler.compile(em, Prodotto.class, f, null);
+        QueryPlan pg = QueryPlanCompiler.compile(em, Prodotto.class, g, null);
+        assertEquals(QueryPlanCompiler.canonicalKey(Prodotto.class, f, null, pf.operands(f)),
+                QueryPlanCompiler.canonicalKey(Prodotto.class, g, null, pg.operands(g)));
+        List<FilterCondition> h = filter("b%", 1, 2);
+        assertFalse(QueryPlanCompiler.canonicalKey(Prodotto.class, f, null, pf.operands(f))
+                .equals(QueryPlanCompiler.canonicalKey(Prodotto.class, h, null, pf.operands(h))));
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void unknownAttributeIsRejected() throws Exception {
+        QueryPlanCompiler.compile(em, Prodotto.class, Arrays.asList(new FilterCondition("nome) OR (1 = 1", FilterCondition.EQ, "x", true)), null);
+    }
+
+    @Test
+    public void listAndCountAgreeOnTheSameFilter() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.create(new Prodotto("Piano A", 121.5, null));
+        s.create(new Prodotto("piano B", 122.5, null));
+        s.create(new Prodotto("Piano C", 129.5, null));
+        s.create(new Prodotto("Altro", 122, null));
+        for (double max : new double[]{121.5, 123, 130}) {
+            List<FilterCondition> f = filter("PIANO%", 121, max);
+            assertEquals(s.list(f, null, null, null).size(), s.count(f));
+        }
+        assertEquals(2, s.count(filter("piano%", 121, 123)));
+        s.close();
+    }
+}
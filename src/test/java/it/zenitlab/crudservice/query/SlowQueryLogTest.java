@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.query;
+
+import it.zenitlab.crudservice.EM;
+import it.zenitlab.crudservice.TestService;
+import it.zenitlab.crudservice.model.Prodotto;
+import it.zenitlab.util.criteria.FilterCondition;
+import it.zenitlab.util.criteria.SortingVerse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica la normalizzazione delle forme e la registrazione delle letture
+ * lente.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class SlowQueryLogTest {
+
+    private static EntityManagerFactory emf;
+    private final List<String> messages = new ArrayList<String>();
+    private final AppenderSkeleton appender = new AppenderSkeleton() {
+        @Override
+        protected void append(LoggingEvent event) {
+            messages.add(event.getRenderedMessage());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    };
+
+    @BeforeClass
+    public static void setUpClass() {
+        EM.init("crudservice-test");
+        emf = EM.getFactory("crudservice-test");
+    }
+
+    @Before
+    public void setUp() {
+        SlowQueryLog.reset();
+        Logger.getLogger(SlowQueryLog.class).addAppender(appender);
+    }
+
+    @After
+    public void tearDown() {
+        SlowQueryLog.disable();
+        SlowQueryLog.reset();
+        Logger.getLogger(SlowQueryLog.class).removeAppender(appender);
+    }
+
+    private static List<FilterCondition> filter(String nome) {
+        return Arrays.asList(new FilterCondition("nome", FilterCondition.LK, nome, false),
+                new FilterCondition("prezzo", FilterCondition.BT, 191.0, 192.0, true));
+    }
+
+    @Test
+    public void shapeHidesTheOperandsWhenRedacted() {
+        List<SortingVerse> order = Arrays.asList(new SortingVerse("prezzo", SortingVerse.DESC, true));
+        assertEquals("UPPER(nome) LIKE ? AND prezzo BETWEEN ? AND ? ORDER BY prezzo DESC", SlowQueryLog.shape(filter("Lento%"), order, true));
+        assertEquals("UPPER(nome) LIKE Lento% AND prezzo BETWEEN 191.0 AND 192.0 ORDER BY prezzo DESC", SlowQueryLog.shape(filter("Lento%"), order, false));
+        assertEquals("", SlowQueryLog.shape(null, null, true));
+    }
+
+    @Test
+    public void readsWithTheSameShapeAreAggregated() throws Exception {
+        SlowQueryLog.enable(0, true);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.list(filter("Primo%"), null, null, null);
+        s.list(filter("Secondo%"), null, null, null);
+        s.count(filter("Primo%"));
+        s.close();
+        List<SlowQueryLog.ShapeStats> top = SlowQueryLog.getTopShapes(10);
+        assertEquals(2, top.size());
+        for (SlowQueryLog.ShapeStats stats : top) {
+            assertEquals(Prodotto.class.getName(), stats.getEntity());
+            assertEquals("UPPER(nome) LIKE ? AND prezzo BETWEEN ? AND ?", stats.getShape());
+            assertEquals("list".equals(stats.getOperation()) ? 2 : 1, stats.getCount());
+            assertTrue(stats.getMaxNanos() <= stats.getTotalNanos());
+        }
+        assertEquals(3, messages.size());
+        for (String m : messages) {
+            assertFalse(m.contains("Primo"));
+        }
+        assertEquals(1, SlowQueryLog.getTopShapes(1).size());
+    }
+
+    @Test
+    public void operandsAreLoggedOnlyWhenNotRedacted() throws Exception {
+        SlowQueryLog.enable(0, false);
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        s.count(filter("Visibile%"));
+        s.close();
+        assertEquals(1, messages.size());
+        assertTrue(messages.get(0).contains("Visibile%"));
+    }
+
+    @Test
+    public void fastOrDisabledReadsAreNotRecorded() throws Exception {
+        TestService s = new TestService(emf.createEntityManager(), Prodotto.class);
+        assertEquals(0, SlowQueryLog.start());
+        s.count(filter("Disabilitato%"));
+        SlowQueryLog.enable(60000, true);
+        s.count(filter("Veloce%"));
+        s.close();
+        assertTrue(SlowQueryLog.getTopShapes(10).isEmpty());
+        assertTrue(messages.isEmpty());
+    }
+}
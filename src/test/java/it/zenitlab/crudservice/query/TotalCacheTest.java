@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Zenit Srl <www.zenitlab.it>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.zenitlab.crudservice.query;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Verifica che un totale contato prima di un'invalidazione non venga
+ * memorizzato dopo di essa.
+ *
+ * @author Giuseppe M. Mazzeo <gmmazzeo@gmail.com>
+ * @author Michele Milidoni <michelemilidoni@gmail.com>
+ */
+public class TotalCacheTest {
+
+    @After
+    public void tearDown() {
+        TotalCache.invalidate(TotalCacheTest.class);
+    }
+
+    @Test
+    public void putStoresWhenNotInvalidated() {
+        long g = TotalCache.generation(TotalCacheTest.class);
+        TotalCache.put(TotalCacheTest.class, g, "C|", 3L, 60000);
+        assertEquals(Long.valueOf(3L), TotalCache.get(TotalCacheTest.class, "C|"));
+    }
+
+    @Test
+    public void putIsDiscardedAfterInvalidation() {
+        long g = TotalCache.generation(TotalCacheTest.class);
+        TotalCache.invalidate(TotalCacheTest.class);
+        TotalCache.put(TotalCacheTest.class, g, "C|", 3L, 60000);
+        assertNull(TotalCache.get(TotalCacheTest.class, "C|"));
+    }
+}